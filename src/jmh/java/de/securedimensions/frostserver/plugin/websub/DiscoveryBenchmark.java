@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2024 Secure Dimensions GmbH, D-81377
+ * Munich, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.securedimensions.frostserver.plugin.websub;
+
+import de.fraunhofer.iosb.ilt.frostserver.path.Version;
+import de.fraunhofer.iosb.ilt.frostserver.service.RequestTypeUtils;
+import de.fraunhofer.iosb.ilt.frostserver.service.Service;
+import de.fraunhofer.iosb.ilt.frostserver.service.ServiceRequest;
+import de.fraunhofer.iosb.ilt.frostserver.service.ServiceRequestBuilder;
+import de.fraunhofer.iosb.ilt.frostserver.service.ServiceResponse;
+import de.fraunhofer.iosb.ilt.frostserver.service.ServiceResponseDefault;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import de.fraunhofer.iosb.ilt.frostserver.util.HttpMethod;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the WebSub discovery hot path. The plugin runs against a
+ * stubbed main Service that returns the response untouched, so no database
+ * or container is needed. Run with the "benchmark" profile; the GC profiler
+ * reports the bytes allocated per operation as gc.alloc.rate.norm.
+ *
+ * Each execute operation includes the allocation of a fresh
+ * ServiceResponseDefault, since Link headers accumulate on the response.
+ *
+ * @author securedimensions
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DiscoveryBenchmark {
+
+    private static final List<String> ENTITY_SETS = Arrays.asList(
+            // STA Core
+            "Things", "Locations", "HistoricalLocations", "Datastreams", "Sensors", "ObservedProperties", "Observations", "FeaturesOfInterest",
+            // MultiDatastream
+            "MultiDatastreams",
+            // STAplus
+            "Parties", "Licenses", "Campaigns", "ObservationGroups", "Relations",
+            // Tasking
+            "Actuators", "Tasks", "TaskingCapabilities");
+
+    private static final String ROOT_TOPICS = "Datastreams,Observations,Things,MultiDatastreams,Parties,Campaigns,ObservationGroups";
+
+    private static final String[][] PLAIN = {
+        {"/Datastreams", null},
+        {"/Observations", null},
+        {"/Sensors", null},
+        {"/Campaigns", null},
+        {"/Foo", null}
+    };
+
+    private static final String[][] NAVIGATION = {
+        {"/Things(1)/Datastreams(5)/Observations", null},
+        {"/Datastreams(5)/Observations", null},
+        {"/MultiDatastreams(3)/ObservedProperties", null},
+        {"/ObservationGroups(12)/Observations(7)/FeatureOfInterest", null},
+        {"/Parties(8)/Campaigns(2)/Datastreams", null}
+    };
+
+    private static final String[][] QUERY = {
+        {"/Observations", "$select=result,phenomenonTime&$orderby=phenomenonTime desc&$top=100"},
+        {"/Observations", "$filter=result gt 30 and phenomenonTime ge 2024-01-01T00:00:00Z and Datastream/id eq 5&$orderby=phenomenonTime asc"},
+        {"/Datastreams", "$expand=Observations($filter=result gt 30;$orderby=phenomenonTime desc;$top=10),Thing($select=name,description)&$select=name,unitOfMeasurement"},
+        {"/Things(1)/Datastreams", "$expand=Sensor,ObservedProperty&$filter=substringof('temperature', name) or substringof('humidity', name)"},
+        {"/Campaigns", "$select=name&$count=true&$skip=20&$top=20"}
+    };
+
+    @Param({"plain", "navigation", "query"})
+    public String mix;
+
+    private PluginWebSub plugin;
+    private Service service;
+    private ServiceRequest[] requests;
+    private String[] paths;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Properties properties = new Properties();
+        properties.put("serviceRootUrl", "http://localhost:8080/FROST-Server");
+        properties.put("plugins.websub.enable", "true");
+        properties.put("plugins.websub.rootTopics", ROOT_TOPICS);
+        properties.put("plugins.websub.enable.odataQuery", "true");
+        properties.put("plugins.websub.hubUrl", "https://websub-hub.example.org/api/subscriptions");
+        properties.put("plugins.websub.helpUrl", "https://github.com/securedimensions/FROST-Server-WebSub/help.html");
+        properties.put("mqtt.allowFilter", "true");
+        properties.put("mqtt.allowExpand", "false");
+        CoreSettings settings = new CoreSettings(properties);
+
+        plugin = new PluginWebSub();
+        plugin.init(settings);
+        plugin.initEntitySets(ENTITY_SETS);
+
+        service = new Service(settings) {
+            @Override
+            public ServiceResponse execute(ServiceRequest request, ServiceResponse response) {
+                return response;
+            }
+        };
+
+        String[][] data;
+        switch (mix) {
+            case "navigation":
+                data = NAVIGATION;
+                break;
+            case "query":
+                data = QUERY;
+                break;
+            default:
+                data = PLAIN;
+        }
+        requests = new ServiceRequest[data.length];
+        paths = new String[data.length];
+        for (int i = 0; i < data.length; i++) {
+            paths[i] = data[i][0];
+            requests[i] = new ServiceRequestBuilder(settings, Version.V_1_1)
+                    .withRequestType(RequestTypeUtils.READ)
+                    .withUrlPath(data[i][0])
+                    .withUrlQuery(data[i][1])
+                    .build();
+        }
+    }
+
+    @Benchmark
+    public ServiceResponse execute() {
+        ServiceRequest request = requests[next];
+        next = (next + 1) % requests.length;
+        return plugin.execute(service, request, new ServiceResponseDefault());
+    }
+
+    @Benchmark
+    public String getRequestTypeFor() {
+        String path = paths[next];
+        next = (next + 1) % paths.length;
+        return plugin.getRequestTypeFor(Version.V_1_1, path, HttpMethod.GET, null);
+    }
+
+}
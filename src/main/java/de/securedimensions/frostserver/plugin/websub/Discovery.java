@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2024 Secure Dimensions GmbH, D-81377
+ * Munich, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.securedimensions.frostserver.plugin.websub;
+
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_ERROR_ENTITY_INVALID;
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_ERROR_ENTITY_NOT_ALLOWED;
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_ERROR_ODATA_EXPAND_DISABLED;
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_ERROR_ODATA_FILTER_DISABLED;
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_ERROR_ODATA_QUERY_DISABLED;
+
+import java.util.List;
+
+/**
+ * The outcome of the discovery decision for a request: which links are
+ * returned besides rel="hub". The Link headers and the bulk discovery JSON
+ * are both rendered from it.
+ *
+ * @author securedimensions
+ */
+enum Discovery {
+
+    /**
+     * Only the rel="hub" link, e.g. for the service root.
+     */
+    HUB,
+    /**
+     * The rel="self" link with the canonical topic.
+     */
+    SELF,
+    ENTITY_INVALID(TAG_ERROR_ENTITY_INVALID),
+    ENTITY_NOT_ALLOWED(TAG_ERROR_ENTITY_NOT_ALLOWED),
+    ODATA_QUERY_DISABLED(TAG_ERROR_ODATA_QUERY_DISABLED),
+    ODATA_FILTER_DISABLED(TAG_ERROR_ODATA_FILTER_DISABLED),
+    ODATA_EXPAND_DISABLED(TAG_ERROR_ODATA_EXPAND_DISABLED),
+    ODATA_FILTER_EXPAND_DISABLED(TAG_ERROR_ODATA_FILTER_DISABLED, TAG_ERROR_ODATA_EXPAND_DISABLED);
+
+    /**
+     * The reasons of the rel="help" links, appended to the help URL.
+     */
+    final List<String> helpTags;
+
+    Discovery(String... helpTags) {
+        this.helpTags = List.of(helpTags);
+    }
+
+}
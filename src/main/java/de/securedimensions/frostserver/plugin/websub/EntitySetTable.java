@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2024 Secure Dimensions GmbH, D-81377
+ * Munich, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.securedimensions.frostserver.plugin.websub;
+
+import java.util.Collection;
+
+/**
+ * Open addressing table that maps the first segment of a request path to the
+ * precomputed discovery verdict for that entity set. Lookups compare the
+ * segment in place and do not allocate.
+ *
+ * @author securedimensions
+ */
+final class EntitySetTable {
+
+    /**
+     * The segment is not an entity set of the data model.
+     */
+    static final byte INVALID = 0;
+    /**
+     * The segment is an entity set that is not a configured root topic.
+     */
+    static final byte NOT_ALLOWED = 1;
+    /**
+     * The segment is an entity set that starts with a configured root topic,
+     * e.g. MultiDatastreams for the root topic MultiDatastream.
+     */
+    static final byte ALLOWED = 2;
+
+    private final String[] keys;
+    private final byte[] verdicts;
+    private final int mask;
+
+    EntitySetTable(Collection<String> entitySets, Collection<String> rootTopics) {
+        int capacity = 8;
+        while (capacity < entitySets.size() * 2) {
+            capacity <<= 1;
+        }
+        keys = new String[capacity];
+        verdicts = new byte[capacity];
+        mask = capacity - 1;
+        for (String entitySet : entitySets) {
+            int slot = hash(entitySet, 0, entitySet.length()) & mask;
+            while (keys[slot] != null && !keys[slot].equals(entitySet)) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = entitySet;
+            verdicts[slot] = isRootTopic(entitySet, rootTopics) ? ALLOWED : NOT_ALLOWED;
+        }
+    }
+
+    private static boolean isRootTopic(String entitySet, Collection<String> rootTopics) {
+        for (String rootTopic : rootTopics) {
+            if (!rootTopic.isEmpty() && entitySet.startsWith(rootTopic)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Classifies the path segment that starts at the given index and ends
+     * before the next '(' or '/' or at the end of the path.
+     *
+     * @param path The request path.
+     * @param start The index of the first character of the segment.
+     * @return One of {@link #INVALID}, {@link #NOT_ALLOWED} or {@link #ALLOWED}.
+     */
+    byte classify(String path, int start) {
+        int slot = find(path, start);
+        return (slot < 0) ? INVALID : verdicts[slot];
+    }
+
+    /**
+     * Finds the entity set of the path segment that starts at the given index.
+     *
+     * @param path The request path.
+     * @param start The index of the first character of the segment.
+     * @return The name of the entity set, null if the segment is not an
+     *         entity set of the data model.
+     */
+    String getEntitySet(String path, int start) {
+        int slot = find(path, start);
+        return (slot < 0) ? null : keys[slot];
+    }
+
+    private int find(String path, int start) {
+        int end = segmentEnd(path, start);
+        int length = end - start;
+        if (length == 0) {
+            return -1;
+        }
+        int slot = hash(path, start, end) & mask;
+        String key;
+        while ((key = keys[slot]) != null) {
+            if (key.length() == length && path.regionMatches(start, key, 0, length)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    static int segmentEnd(String path, int start) {
+        int end = start;
+        while (end < path.length()) {
+            char c = path.charAt(end);
+            if (c == '(' || c == '/') {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    private static int hash(String value, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + value.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2024 Secure Dimensions GmbH, D-81377
+ * Munich, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.securedimensions.frostserver.plugin.websub;
+
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_PUBLISH_CIRCUIT_BREAKER_OPEN;
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_PUBLISH_CIRCUIT_BREAKER_THRESHOLD;
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_PUBLISH_MAX_ATTEMPTS;
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_PUBLISH_MAX_BATCH_SIZE;
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_PUBLISH_MAX_CONCURRENT;
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_PUBLISH_MAX_LATENCY;
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_PUBLISH_MAX_RETRY_DELAY;
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_PUBLISH_OVERFLOW;
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_PUBLISH_QUEUE_SIZE;
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_PUBLISH_RETRY_DELAY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import de.fraunhofer.iosb.ilt.frostserver.settings.Settings;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Notifies the Hub that topics have been updated, as required from the
+ * Publisher by W3C WebSub §6. Topics are queued by the request threads and
+ * sent by a single background thread, so writes never wait for the Hub.
+ * Topics are coalesced for up to {@code websub.publish.maxLatency}
+ * milliseconds after the first one arrives, or until
+ * {@code websub.publish.maxBatchSize} distinct topics are collected, and are
+ * then sent as one {@code hub.mode=publish} request with one {@code hub.url}
+ * per topic. A topic that changes many times within the window is sent once.
+ * Pending topics are held in a bounded {@link TopicQueue}, so a Hub outage
+ * cannot grow the heap beyond {@code websub.publish.queueSize} topics.
+ * Requests are sent asynchronously over a shared HTTP/2 capable client, with
+ * a limited number in flight, so a slow Hub response does not hold back the
+ * following batches.
+ * Failed batches are retried with exponential backoff and jitter, and given
+ * up after {@code websub.publish.maxAttempts} attempts. After
+ * {@code websub.publish.circuitBreaker.threshold} consecutive failures the
+ * circuit opens and no requests are sent to the Hub for
+ * {@code websub.publish.circuitBreaker.open} milliseconds.
+ * {@link #close()} stops the background threads; topics still queued are
+ * not sent.
+ *
+ * @author securedimensions
+ */
+class HubNotifier {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HubNotifier.class);
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private final URI publishUri;
+    private final HttpClient httpClient;
+    private final TopicQueue queue;
+    private final Semaphore inFlight;
+    private final int maxBatchSize;
+    private final long maxLatencyNanos;
+    private final int maxAttempts;
+    private final long retryDelayNanos;
+    private final long maxRetryDelayNanos;
+    private final int circuitBreakerThreshold;
+    private final long circuitBreakerOpenNanos;
+    private final ScheduledExecutorService retryScheduler;
+    private final Thread worker;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private volatile long circuitOpenUntil = System.nanoTime();
+
+    /**
+     * @param publishUri The absolute http(s) URL the notifications are sent
+     * to, see {@link #toPublishUri(String)}.
+     * @param pluginSettings The settings of the plugin.
+     */
+    HubNotifier(URI publishUri, Settings pluginSettings) {
+        this.publishUri = publishUri;
+        inFlight = new Semaphore(Math.max(1, pluginSettings.getInt(TAG_PUBLISH_MAX_CONCURRENT, PluginWebSub.class)));
+        maxBatchSize = Math.max(1, pluginSettings.getInt(TAG_PUBLISH_MAX_BATCH_SIZE, PluginWebSub.class));
+        maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(pluginSettings.getInt(TAG_PUBLISH_MAX_LATENCY, PluginWebSub.class));
+        maxAttempts = Math.max(1, pluginSettings.getInt(TAG_PUBLISH_MAX_ATTEMPTS, PluginWebSub.class));
+        retryDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, pluginSettings.getInt(TAG_PUBLISH_RETRY_DELAY, PluginWebSub.class)));
+        maxRetryDelayNanos = TimeUnit.MILLISECONDS.toNanos(pluginSettings.getInt(TAG_PUBLISH_MAX_RETRY_DELAY, PluginWebSub.class));
+        circuitBreakerThreshold = Math.max(1, pluginSettings.getInt(TAG_PUBLISH_CIRCUIT_BREAKER_THRESHOLD, PluginWebSub.class));
+        circuitBreakerOpenNanos = TimeUnit.MILLISECONDS.toNanos(pluginSettings.getInt(TAG_PUBLISH_CIRCUIT_BREAKER_OPEN, PluginWebSub.class));
+        queue = new TopicQueue(pluginSettings.getInt(TAG_PUBLISH_QUEUE_SIZE, PluginWebSub.class), getOverflowPolicy(pluginSettings));
+        httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(TIMEOUT)
+                .build();
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "WebSub-HubNotifier-Retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        worker = new Thread(this::run, "WebSub-HubNotifier");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * @param publishUrl The configured URL of the Hub.
+     * @return The URL if it is an absolute http or https URL, null otherwise.
+     */
+    static URI toPublishUri(String publishUrl) {
+        try {
+            URI uri = new URI(publishUrl);
+            String scheme = uri.getScheme();
+            if (uri.getHost() != null && ("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme))) {
+                return uri;
+            }
+        } catch (URISyntaxException ex) {
+            LOGGER.debug("Invalid publish URL {}", publishUrl, ex);
+        }
+        return null;
+    }
+
+    /**
+     * Stops the background threads. Topics that are still queued or waiting
+     * for a retry are not sent.
+     */
+    void close() {
+        worker.interrupt();
+        retryScheduler.shutdownNow();
+    }
+
+    /**
+     * Queues the given topic for the next publish request to the Hub. While
+     * the queue stays full, a warning is logged for the first dropped topic
+     * and then each time the number of dropped topics doubles.
+     *
+     * @param topicUrl The URL of the topic that was updated.
+     */
+    void publish(String topicUrl) {
+        if (!queue.offer(topicUrl)) {
+            long dropped = queue.getDropped();
+            if ((dropped & (dropped - 1)) == 0) {
+                LOGGER.warn("Publish queue is full, dropped a notification ({} dropped in total)", dropped);
+            }
+        }
+    }
+
+    /**
+     * @return The number of distinct topics waiting to be sent to the Hub.
+     */
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    private static TopicQueue.OverflowPolicy getOverflowPolicy(Settings pluginSettings) {
+        String value = pluginSettings.get(TAG_PUBLISH_OVERFLOW, PluginWebSub.class);
+        try {
+            return TopicQueue.OverflowPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            LOGGER.error("Invalid value for {}: {}, using {}", TAG_PUBLISH_OVERFLOW, value, TopicQueue.OverflowPolicy.DROP_NEWEST);
+            return TopicQueue.OverflowPolicy.DROP_NEWEST;
+        }
+    }
+
+    private void run() {
+        Set<String> batch = new LinkedHashSet<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + maxLatencyNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    String topic = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (topic == null) {
+                        break;
+                    }
+                    batch.add(topic);
+                }
+                send(batch);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException ex) {
+                // Never let one bad batch stop the notifications
+                failed.add(batch.size());
+                LOGGER.error("Failed to publish {} topics to Hub {}", batch.size(), publishUri, ex);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void send(Set<String> topics) throws InterruptedException {
+        long openFor = circuitOpenUntil - System.nanoTime();
+        if (openFor > 0) {
+            // Let topics coalesce in the queue while the Hub is considered down
+            TimeUnit.NANOSECONDS.sleep(openFor);
+        }
+        StringBuilder body = new StringBuilder("hub.mode=publish");
+        for (String topic : topics) {
+            body.append("&hub.url=").append(URLEncoder.encode(topic, UTF_8));
+        }
+        HttpRequest request = HttpRequest.newBuilder(publishUri)
+                .timeout(TIMEOUT)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .build();
+        // The permit is held until the batch is delivered or given up
+        inFlight.acquire();
+        attempt(request, topics.size(), 1);
+    }
+
+    private void attempt(HttpRequest request, int count, int attempt) {
+        try {
+            sendAsync(request, count, attempt);
+        } catch (RuntimeException ex) {
+            // Also runs on the retry scheduler, which would swallow the exception
+            failed.add(count);
+            inFlight.release();
+            LOGGER.error("Failed to publish {} topics to Hub {}", count, publishUri, ex);
+        }
+    }
+
+    private void sendAsync(HttpRequest request, int count, int attempt) {
+        httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, ex) -> {
+                    if (ex == null && !isRetryable(response.statusCode())) {
+                        consecutiveFailures.set(0);
+                        inFlight.release();
+                        if (response.statusCode() < 300) {
+                            sent.add(count);
+                        } else {
+                            rejected.add(count);
+                            LOGGER.warn("Hub {} rejected publish of {} topics: HTTP {}", publishUri, count, response.statusCode());
+                        }
+                        return;
+                    }
+                    String reason = (ex == null) ? "HTTP " + response.statusCode() : ex.getMessage();
+                    if (consecutiveFailures.incrementAndGet() >= circuitBreakerThreshold) {
+                        circuitOpenUntil = System.nanoTime() + circuitBreakerOpenNanos;
+                    }
+                    if (attempt >= maxAttempts) {
+                        failed.add(count);
+                        inFlight.release();
+                        LOGGER.error("Giving up publish of {} topics to Hub {} after {} attempts: {}", count, publishUri, attempt, reason);
+                        return;
+                    }
+                    long delay = Math.max(getBackoffNanos(attempt), circuitOpenUntil - System.nanoTime());
+                    LOGGER.debug("Publish of {} topics to Hub {} failed ({}), retry {} in {} ms", count, publishUri, reason, attempt, TimeUnit.NANOSECONDS.toMillis(delay));
+                    try {
+                        retryScheduler.schedule(() -> attempt(request, count, attempt + 1), delay, TimeUnit.NANOSECONDS);
+                    } catch (RejectedExecutionException closed) {
+                        inFlight.release();
+                    }
+                });
+    }
+
+    private static boolean isRetryable(int statusCode) {
+        return statusCode == 429 || statusCode >= 500;
+    }
+
+    /**
+     * Exponential backoff with jitter: a random delay between half and the
+     * full value of retryDelay * 2^(attempt - 1), capped at maxRetryDelay.
+     */
+    private long getBackoffNanos(int attempt) {
+        long backoff = retryDelayNanos;
+        for (int i = 1; i < attempt && backoff < maxRetryDelayNanos; i++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, maxRetryDelayNanos);
+        return ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+    }
+
+    /**
+     * @return The number of topics the Hub accepted a notification for.
+     */
+    long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * @return The number of updates of topics that were already queued.
+     */
+    long getCoalesced() {
+        return queue.getCoalesced();
+    }
+
+    /**
+     * @return The number of topics dropped because the queue was full.
+     */
+    long getDropped() {
+        return queue.getDropped();
+    }
+
+    /**
+     * @return The number of topics whose notification was given up after the
+     * maximum number of attempts.
+     */
+    long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return The number of topics whose notification the Hub rejected with
+     * an HTTP status that is not retried, e.g. 400.
+     */
+    long getRejected() {
+        return rejected.sum();
+    }
+
+}
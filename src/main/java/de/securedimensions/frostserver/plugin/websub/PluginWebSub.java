@@ -21,26 +21,45 @@ import static de.fraunhofer.iosb.ilt.frostserver.service.PluginManager.PATH_WILD
 import static de.fraunhofer.iosb.ilt.frostserver.service.PluginResultFormat.FORMAT_NAME_EMPTY;
 import static de.fraunhofer.iosb.ilt.frostserver.service.RequestTypeUtils.*;
 import static de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings.TAG_SERVICE_ROOT_URL;
+import static de.fraunhofer.iosb.ilt.frostserver.util.Constants.CONTENT_TYPE_APPLICATION_JSON;
 import static de.fraunhofer.iosb.ilt.frostserver.util.Constants.CONTENT_TYPE_APPLICATION_JSONPATCH;
 import static de.fraunhofer.iosb.ilt.frostserver.util.Constants.REQUEST_PARAM_FORMAT;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import de.fraunhofer.iosb.ilt.frostserver.json.mapper.SimpleJsonMapper;
+import de.fraunhofer.iosb.ilt.frostserver.messagebus.EntityChangedMessage;
+import de.fraunhofer.iosb.ilt.frostserver.messagebus.MessageBus;
+import de.fraunhofer.iosb.ilt.frostserver.messagebus.MessageBusFactory;
+import de.fraunhofer.iosb.ilt.frostserver.messagebus.MessageListener;
 import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.Entity;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.Id;
 import de.fraunhofer.iosb.ilt.frostserver.path.Version;
+import de.fraunhofer.iosb.ilt.frostserver.property.NavigationPropertyMain;
+import de.fraunhofer.iosb.ilt.frostserver.property.NavigationPropertyMain.NavigationPropertyEntity;
 import de.fraunhofer.iosb.ilt.frostserver.service.*;
 import de.fraunhofer.iosb.ilt.frostserver.settings.ConfigDefaults;
 import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
 import de.fraunhofer.iosb.ilt.frostserver.settings.Settings;
 import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValue;
 import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValueBoolean;
+import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValueInt;
 import de.fraunhofer.iosb.ilt.frostserver.util.HttpMethod;
 import de.fraunhofer.iosb.ilt.frostserver.util.StringHelper;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  *
  * @author securedimensions
  */
-public class PluginWebSub implements PluginRootDocument, ConfigDefaults, PluginService {
+public class PluginWebSub implements PluginRootDocument, ConfigDefaults, PluginService, MessageListener {
 
     @DefaultValueBoolean(false)
     public static final String TAG_ENABLE_WEBSUB = "websub.enable";
@@ -57,13 +76,77 @@ public class PluginWebSub implements PluginRootDocument, ConfigDefaults, PluginS
     @DefaultValue("/error")
     public static final String TAG_HELP_URL = "websub.helpUrl";
 
+    @DefaultValueBoolean(false)
+    public static final String TAG_ENABLE_PUBLISH = "websub.enable.publish";
+
+    @DefaultValue("")
+    public static final String TAG_PUBLISH_URL = "websub.publishUrl";
+
+    @DefaultValueInt(4)
+    public static final String TAG_PUBLISH_MAX_CONCURRENT = "websub.publish.maxConcurrent";
+
+    @DefaultValueInt(100)
+    public static final String TAG_PUBLISH_MAX_BATCH_SIZE = "websub.publish.maxBatchSize";
+
+    @DefaultValueInt(0)
+    public static final String TAG_PUBLISH_MAX_LATENCY = "websub.publish.maxLatency";
+
+    @DefaultValueInt(10000)
+    public static final String TAG_PUBLISH_QUEUE_SIZE = "websub.publish.queueSize";
+
+    @DefaultValue("DROP_NEWEST")
+    public static final String TAG_PUBLISH_OVERFLOW = "websub.publish.overflow";
+
+    @DefaultValueInt(5)
+    public static final String TAG_PUBLISH_MAX_ATTEMPTS = "websub.publish.maxAttempts";
+
+    @DefaultValueInt(1000)
+    public static final String TAG_PUBLISH_RETRY_DELAY = "websub.publish.retryDelay";
+
+    @DefaultValueInt(60000)
+    public static final String TAG_PUBLISH_MAX_RETRY_DELAY = "websub.publish.maxRetryDelay";
+
+    @DefaultValueInt(5)
+    public static final String TAG_PUBLISH_CIRCUIT_BREAKER_THRESHOLD = "websub.publish.circuitBreaker.threshold";
+
+    @DefaultValueInt(30000)
+    public static final String TAG_PUBLISH_CIRCUIT_BREAKER_OPEN = "websub.publish.circuitBreaker.open";
+
+    @DefaultValueInt(10000)
+    public static final String TAG_PUBLISH_MAX_TOPICS = "websub.publish.maxTopics";
+
+    @DefaultValueInt(10000)
+    public static final String TAG_TOPIC_CACHE_SIZE = "websub.topicCacheSize";
+
+    @DefaultValueBoolean(false)
+    public static final String TAG_ENABLE_METRICS = "websub.enable.metrics";
+
+    @DefaultValueBoolean(false)
+    public static final String TAG_ENABLE_HEAD_FAST_PATH = "websub.enable.headFastPath";
+
+    @DefaultValueBoolean(false)
+    public static final String TAG_ENABLE_BULK_DISCOVERY = "websub.enable.bulkDiscovery";
+
+    @DefaultValueInt(10000)
+    public static final String TAG_BULK_DISCOVERY_MAX_URLS = "websub.bulkDiscovery.maxUrls";
+
+    public static final String PATH_METRICS = "/$websub/metrics";
+    public static final String REQUEST_TYPE_METRICS = "websubMetrics";
+    public static final String REQUEST_TYPE_DISCOVERY = "websubDiscovery";
+    public static final String PATH_BULK_DISCOVERY = "/$websub/discovery";
+    public static final String REQUEST_TYPE_BULK_DISCOVERY = "websubBulkDiscovery";
+
     public static final String TAG_ERROR_ODATA_QUERY_DISABLED = "odataQueryDisabled";
     public static final String TAG_ERROR_ODATA_FILTER_DISABLED = "odataQueryFilterDisabled";
     public static final String TAG_ERROR_ODATA_EXPAND_DISABLED = "odataQueryExpandDisabled";
     public static final String TAG_ERROR_ENTITY_INVALID = "entityInvalid";
     public static final String TAG_ERROR_ENTITY_NOT_ALLOWED = "entityNotAllowed";
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(PluginWebSub.class);
+
+    private static final String CONTENT_TYPE_PROMETHEUS = "text/plain; version=0.0.4; charset=utf-8";
     private static final String REQUIREMENT_WEBSUB = "https://github.com/securedimensions/FROST-Server-WebSub";
+    private static final String SELF_LINK_SUFFIX = ">; rel=\"self\"";
 
     private CoreSettings settings;
     @DefaultValueBoolean(false)
@@ -76,9 +159,38 @@ public class PluginWebSub implements PluginRootDocument, ConfigDefaults, PluginS
 
     private String hubUrl;
 
-    private ArrayList<String> rootTopics;
+    // Answer HEAD requests on root topics without executing the query
+    private boolean headFastPath;
+
+    // Answer POST requests with a list of topic URLs to discover
+    private boolean bulkDiscovery;
+    private int bulkDiscoveryMaxUrls;
+
+    // Set if the Hub is notified about updated topics
+    private volatile HubNotifier hubNotifier;
+    private Thread shutdownHook;
+    // The handed out topics that are published on changes to their entity set
+    private TopicRegistry topicRegistry;
+    // Set once this plugin listens to the entity changes on the message bus
+    private volatile MessageBus messageBus;
+
+    // Set if metrics are collected
+    private WebSubMetrics metrics;
+
+    private Set<String> rootTopics;
     private String rootUrl, helpUrl;
 
+    // Link header values that do not depend on the request, rendered in init()
+    private String hubLink;
+    private Map<Discovery, List<String>> links;
+    // rootUrl + "/" + version, the start of each topic URL
+    private Map<Version, String> topicPrefixes;
+
+    private TopicCanonicalizer topicCanonicalizer;
+
+    // Built on first use, when the model registry holds all entity types
+    private volatile EntitySetTable entitySetTable;
+
     @Override
     public InitResult init(CoreSettings settings) {
         this.settings = settings;
@@ -96,7 +208,56 @@ public class PluginWebSub implements PluginRootDocument, ConfigDefaults, PluginS
         helpUrl = (helpUrl.endsWith("/")) ? helpUrl.substring(0, helpUrl.length() - 1) : helpUrl;
         helpUrl = helpUrl + "#";
         hubUrl = pluginSettings.get(TAG_HUB_URL, getClass());
-        rootTopics = new ArrayList<>(Arrays.asList(pluginSettings.get(TAG_ROOT_TOPICS, "-").split(",")));
+        headFastPath = pluginSettings.getBoolean(TAG_ENABLE_HEAD_FAST_PATH, getClass());
+        bulkDiscovery = pluginSettings.getBoolean(TAG_ENABLE_BULK_DISCOVERY, getClass());
+        bulkDiscoveryMaxUrls = pluginSettings.getInt(TAG_BULK_DISCOVERY_MAX_URLS, getClass());
+        rootTopics = new HashSet<>();
+        for (String rootTopic : pluginSettings.get(TAG_ROOT_TOPICS, "-").split(",")) {
+            rootTopics.add(rootTopic.trim());
+        }
+
+        close();
+        if (pluginSettings.getBoolean(TAG_ENABLE_PUBLISH, getClass())) {
+            String publishUrl = pluginSettings.get(TAG_PUBLISH_URL, getClass());
+            publishUrl = StringHelper.isNullOrEmpty(publishUrl) ? hubUrl : publishUrl;
+            URI publishUri = HubNotifier.toPublishUri(publishUrl);
+            if (publishUri == null) {
+                LOGGER.error("Publishing disabled: '{}' is not an absolute http(s) URL, set {} or {}", publishUrl, TAG_PUBLISH_URL, TAG_HUB_URL);
+            } else {
+                topicRegistry = new TopicRegistry(pluginSettings.getInt(TAG_PUBLISH_MAX_TOPICS, getClass()));
+                hubNotifier = new HubNotifier(publishUri, pluginSettings);
+                listenToMessageBus();
+            }
+        }
+        metrics = null;
+        if (pluginSettings.getBoolean(TAG_ENABLE_METRICS, getClass())) {
+            metrics = new WebSubMetrics(hubNotifier);
+            metrics.registerMBean(rootUrl);
+        }
+        if ((hubNotifier != null || metrics != null) && shutdownHook == null) {
+            shutdownHook = new Thread(this::close, "WebSub-Shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
+
+        topicCanonicalizer = new TopicCanonicalizer(pluginSettings.getInt(TAG_TOPIC_CACHE_SIZE, getClass()));
+
+        hubLink = "<" + hubUrl + ">; rel=\"hub\"";
+        links = new EnumMap<>(Discovery.class);
+        for (Discovery discovery : Discovery.values()) {
+            if (discovery != Discovery.SELF) {
+                List<String> linkHeaders = new ArrayList<>();
+                linkHeaders.add(hubLink);
+                for (String tag : discovery.helpTags) {
+                    linkHeaders.add(renderHelpLink(tag));
+                }
+                links.put(discovery, List.copyOf(linkHeaders));
+            }
+        }
+        topicPrefixes = new HashMap<>();
+        for (Version version : getVersions()) {
+            topicPrefixes.put(version, rootUrl + "/" + version);
+        }
+
         if (enabled) {
             settings.getPluginManager().registerPlugin(this);
         }
@@ -104,6 +265,42 @@ public class PluginWebSub implements PluginRootDocument, ConfigDefaults, PluginS
         return InitResult.INIT_OK;
     }
 
+    /**
+     * Stops listening to the message bus, stops the notifications to the Hub
+     * and unregisters the metrics MBean.
+     * Called from a JVM shutdown hook and when the plugin is initialised
+     * again; a container that undeploys the service without stopping the JVM
+     * should call it as well. Unless called from the hook itself, it removes
+     * the hook, which would otherwise keep the plugin and its web application
+     * reachable until the JVM stops.
+     */
+    public synchronized void close() {
+        Thread hook = shutdownHook;
+        shutdownHook = null;
+        if (hook != null && hook != Thread.currentThread()) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException ex) {
+                // The JVM is already shutting down, the hook runs anyway
+            }
+        }
+        MessageBus bus = messageBus;
+        messageBus = null;
+        if (bus != null) {
+            bus.removeMessageListener(this);
+        }
+        HubNotifier notifier = hubNotifier;
+        hubNotifier = null;
+        if (notifier != null) {
+            notifier.close();
+        }
+        // Keeps counting until replaced, only JMX no longer shows it
+        WebSubMetrics currentMetrics = metrics;
+        if (currentMetrics != null) {
+            currentMetrics.unregisterMBean();
+        }
+    }
+
     @Override
     public boolean isEnabled() {
         return enabled;
@@ -128,7 +325,10 @@ public class PluginWebSub implements PluginRootDocument, ConfigDefaults, PluginS
                 RequestTypeUtils.READ,
                 RequestTypeUtils.UPDATE_ALL,
                 RequestTypeUtils.UPDATE_CHANGES,
-                RequestTypeUtils.UPDATE_CHANGESET);
+                RequestTypeUtils.UPDATE_CHANGESET,
+                REQUEST_TYPE_METRICS,
+                REQUEST_TYPE_DISCOVERY,
+                REQUEST_TYPE_BULK_DISCOVERY);
     }
 
     @Override
@@ -142,6 +342,12 @@ public class PluginWebSub implements PluginRootDocument, ConfigDefaults, PluginS
                 if (path.isEmpty() || "/".equals(path)) {
                     return RequestTypeUtils.GET_CAPABILITIES;
                 }
+                if (metrics != null && PATH_METRICS.equals(path)) {
+                    return REQUEST_TYPE_METRICS;
+                }
+                if (headFastPath && method == HttpMethod.HEAD && getEntitySetTable().classify(path, 1) == EntitySetTable.ALLOWED) {
+                    return REQUEST_TYPE_DISCOVERY;
+                }
                 return RequestTypeUtils.READ;
 
             case PATCH:
@@ -151,6 +357,9 @@ public class PluginWebSub implements PluginRootDocument, ConfigDefaults, PluginS
                 return RequestTypeUtils.UPDATE_CHANGES;
 
             case POST:
+                if (bulkDiscovery && PATH_BULK_DISCOVERY.equals(path)) {
+                    return REQUEST_TYPE_BULK_DISCOVERY;
+                }
                 return RequestTypeUtils.CREATE;
 
             case PUT:
@@ -163,37 +372,13 @@ public class PluginWebSub implements PluginRootDocument, ConfigDefaults, PluginS
 
     @Override
     public ServiceResponse execute(Service mainService, ServiceRequest request, ServiceResponse response) {
-        String urlPath = request.getUrlPath();
-        String entityName = (urlPath.equalsIgnoreCase("")) ? urlPath : urlPath.substring(1);
-        String topicUrl = rootUrl + "/" + request.getVersion() + request.getUrlPath();
-        String odataQuery = request.getUrlQuery();
-        boolean queryPresent = odataQuery != null;
-        boolean filterPresent = false;
-        if (odataQuery != null) {
-            filterPresent = odataQuery.contains("filter=");
-        }
-        boolean expandPresent = false;
-        if (odataQuery != null) {
-            expandPresent = odataQuery.contains("expand=");
-        }
-
-        Iterator<EntityType> eti = settings.getModelRegistry().getEntityTypes().iterator();
-        // True if the entityName is from the data model entities that are activated
-        boolean validEntity = false;
-        while (eti.hasNext()) {
-            EntityType et = eti.next();
-            if (entityName.startsWith(et.plural)) {
-                validEntity = true;
-                break;
-            }
+        long start = (metrics == null) ? 0 : System.nanoTime();
+        if (hubNotifier != null && messageBus == null) {
+            listenToMessageBus();
         }
+        String urlPath = request.getUrlPath();
+        byte verdict = getEntitySetTable().classify(urlPath, urlPath.isEmpty() ? 0 : 1);
 
-        if (allowOdataQuery && (request.getUrlQuery() != null)) {
-            // URL compliant for the odata query values:  "," -> "%2C" and " " -> "%20"
-            topicUrl += '?' + request.getUrlQuery().replaceAll(",", "%2C").replaceAll(" ", "%20");
-        }
-        ArrayList linkHeaders = new ArrayList<String>();
-        linkHeaders.add("<%s>; rel=\"hub\"".formatted(hubUrl));
         switch (request.getRequestType()) {
             case CREATE:
             case UPDATE_ALL:
@@ -202,29 +387,24 @@ public class PluginWebSub implements PluginRootDocument, ConfigDefaults, PluginS
                 request.addParameterIfAbsent(REQUEST_PARAM_FORMAT, FORMAT_NAME_EMPTY);
                 return mainService.execute(request, response);
             case READ:
-                if (validEntity) {
-                    if (isValidEntity(rootTopics, entityName)) {
-                        if (!allowOdataQuery && queryPresent) {
-                            linkHeaders.add("<%s>; rel=\"help\"".formatted(helpUrl + TAG_ERROR_ODATA_QUERY_DISABLED));
-                        } else if (allowOdataQuery && (!allowFilter && filterPresent) && (!allowExpand && expandPresent)) {
-                            linkHeaders.add("<%s>; rel=\"help\"".formatted(helpUrl + TAG_ERROR_ODATA_FILTER_DISABLED));
-                            linkHeaders.add("<%s>; rel=\"help\"".formatted(helpUrl + TAG_ERROR_ODATA_EXPAND_DISABLED));
-                        } else if (allowOdataQuery && (!allowFilter && filterPresent)) {
-                            linkHeaders.add("<%s>; rel=\"help\"".formatted(helpUrl + TAG_ERROR_ODATA_FILTER_DISABLED));
-                        } else if (allowOdataQuery && (!allowExpand && expandPresent)) {
-                            linkHeaders.add("<%s>; rel=\"help\"".formatted(helpUrl + TAG_ERROR_ODATA_EXPAND_DISABLED));
-                        } else {
-                            linkHeaders.add("<%s>; rel=\"self\"".formatted(topicUrl));
-                        }
-                    } else {
-                        linkHeaders.add("<%s>; rel=\"help\"".formatted(helpUrl + TAG_ERROR_ENTITY_NOT_ALLOWED));
-                    }
-                }
-            default:
-                if (!validEntity) {
-                    linkHeaders.add("<%s>; rel=\"help\"".formatted(helpUrl + TAG_ERROR_ENTITY_INVALID));
+                List<String> linkHeaders = getReadLinks(verdict, request.getVersion(), urlPath, request.getUrlQuery());
+                if (metrics != null) {
+                    metrics.recordLatency(System.nanoTime() - start);
                 }
                 return mainService.execute(request, response.addHeaders("Link", linkHeaders));
+            case REQUEST_TYPE_DISCOVERY:
+                response.addHeaders("Link", getReadLinks(verdict, request.getVersion(), urlPath, request.getUrlQuery()));
+                if (metrics != null) {
+                    metrics.recordLatency(System.nanoTime() - start);
+                }
+                response.setStatus(200, "OK");
+                return response;
+            case REQUEST_TYPE_BULK_DISCOVERY:
+                return executeBulkDiscovery(request, response);
+            case REQUEST_TYPE_METRICS:
+                return executeMetrics(response);
+            default:
+                return mainService.execute(request, response.addHeaders("Link", getDefaultLinks(verdict)));
         }
     }
 
@@ -239,16 +419,358 @@ public class PluginWebSub implements PluginRootDocument, ConfigDefaults, PluginS
         extensionList.add(REQUIREMENT_WEBSUB);
     }
 
-    private boolean isValidEntity(ArrayList<String> validEntities, String entity) {
+    private ServiceResponse executeMetrics(ServiceResponse response) {
+        response.setStatus(200, "OK");
+        response.setContentType(CONTENT_TYPE_PROMETHEUS);
+        try {
+            metrics.writePrometheus(response.getWriter());
+        } catch (IOException ex) {
+            LOGGER.error("Failed to write the WebSub metrics", ex);
+        }
+        return response;
+    }
+
+    /**
+     * Answers a JSON array of topic URLs with the hub, self and help links
+     * that a GET request to each URL would return, without executing the
+     * requests. Bulk discoveries are not counted in the discovery metrics,
+     * which count requests.
+     */
+    private ServiceResponse executeBulkDiscovery(ServiceRequest request, ServiceResponse response) {
+        List<String> urls = new ArrayList<>();
+        try (JsonParser parser = SimpleJsonMapper.getSimpleObjectMapper().getFactory().createParser(request.getContentReader())) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                return badRequest(response);
+            }
+            JsonToken token;
+            while ((token = parser.nextToken()) == JsonToken.VALUE_STRING) {
+                if (urls.size() == bulkDiscoveryMaxUrls) {
+                    response.setStatus(413, "More than " + bulkDiscoveryMaxUrls + " URLs");
+                    return response;
+                }
+                urls.add(parser.getText());
+            }
+            if (token != JsonToken.END_ARRAY) {
+                return badRequest(response);
+            }
+        } catch (IOException ex) {
+            LOGGER.debug("Failed to parse the bulk discovery request", ex);
+            return badRequest(response);
+        }
+        List<Map<String, Object>> result = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            result.add(discover(url));
+        }
+        response.setStatus(200, "OK");
+        response.setContentType(CONTENT_TYPE_APPLICATION_JSON);
+        try {
+            SimpleJsonMapper.getSimpleObjectMapper().writeValue(response.getWriter(), result);
+        } catch (IOException ex) {
+            LOGGER.error("Failed to write the bulk discovery response", ex);
+        }
+        return response;
+    }
+
+    private static ServiceResponse badRequest(ServiceResponse response) {
+        response.setStatus(400, "Request body must be a JSON array of URLs");
+        return response;
+    }
+
+    /**
+     * Applies the decision logic of a GET request to the URL.
+     *
+     * @param url The encoded URL of a topic, e.g. rootUrl/v1.1/Observations.
+     * @return The url, the hub, the self link if any and the help links if
+     *         any.
+     */
+    private Map<String, Object> discover(String url) {
+        Discovery discovery = Discovery.ENTITY_INVALID;
+        String topic = null;
+        Version version = null;
+        int versionStart = rootUrl.length() + 1;
+        if (url.startsWith(rootUrl) && url.length() > versionStart && url.charAt(rootUrl.length()) == '/') {
+            int queryStart = url.indexOf('?', versionStart);
+            int pathEnd = (queryStart < 0) ? url.length() : queryStart;
+            int pathStart = url.indexOf('/', versionStart);
+            pathStart = (pathStart < 0 || pathStart > pathEnd) ? pathEnd : pathStart;
+            String versionPart = url.substring(versionStart, pathStart);
+            for (Version candidate : getVersions()) {
+                if (candidate.toString().equals(versionPart)) {
+                    version = candidate;
+                }
+            }
+            if (version != null) {
+                try {
+                    // Decoded as FROST-Server does for the request, keeping '+' in the path
+                    String urlPath = URLDecoder.decode(url.substring(pathStart, pathEnd).replace("+", "%2B"), StandardCharsets.UTF_8);
+                    String odataQuery = (queryStart < 0) ? null : URLDecoder.decode(url.substring(queryStart + 1), StandardCharsets.UTF_8);
+                    if (urlPath.isEmpty() || "/".equals(urlPath)) {
+                        discovery = getDefaultDiscovery(getEntitySetTable().classify(urlPath, urlPath.isEmpty() ? 0 : 1));
+                    } else {
+                        QueryOptions queryOptions = getQueryOptions(odataQuery);
+                        discovery = getReadDiscovery(getEntitySetTable().classify(urlPath, 1), odataQuery, queryOptions);
+                        if (discovery == Discovery.SELF) {
+                            topic = renderTopic(version, urlPath, queryOptions);
+                            if (isRecorded(urlPath, queryOptions)) {
+                                recordTopic(urlPath, topic);
+                            }
+                        }
+                    }
+                } catch (IllegalArgumentException ex) {
+                    LOGGER.debug("Invalid URL in bulk discovery: {}", url);
+                }
+            }
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("url", url);
+        result.put("hub", hubUrl);
+        if (topic != null) {
+            result.put("self", topic);
+        }
+        if (!discovery.helpTags.isEmpty()) {
+            List<String> helpLinks = new ArrayList<>(discovery.helpTags.size());
+            for (String tag : discovery.helpTags) {
+                helpLinks.add(helpUrl + tag);
+            }
+            result.put("help", helpLinks);
+        }
+        return result;
+    }
+
+    private static Discovery getDefaultDiscovery(byte verdict) {
+        return (verdict == EntitySetTable.INVALID) ? Discovery.ENTITY_INVALID : Discovery.HUB;
+    }
+
+    private List<String> getDefaultLinks(byte verdict) {
+        return links.get(getDefaultDiscovery(verdict));
+    }
+
+    /**
+     * Adds this plugin as listener for the entity changes on the message bus.
+     * The plugins are initialised before the message bus is, so this is
+     * retried on each request until the message bus is available.
+     */
+    private synchronized void listenToMessageBus() {
+        if (messageBus != null) {
+            return;
+        }
+        try {
+            MessageBus bus = MessageBusFactory.getMessageBus();
+            bus.addMessageListener(this);
+            messageBus = bus;
+        } catch (IllegalStateException ex) {
+            LOGGER.debug("Message bus not yet initialised, not listening to entity changes yet");
+        }
+    }
+
+    /**
+     * Queues the topics that are updated by a changed entity for the publish
+     * notification to the Hub: the entity set, e.g. /Observations, the entity,
+     * e.g. /Observations(7), and the entity set of the entity in each of its
+     * parents, e.g. /Datastreams(5)/Observations. Topics are only published if
+     * their root entity set is one of the root topics, for each version. In
+     * addition, the handed out topics that are kept for the entity set of the
+     * entity are published, see {@link #recordTopic(String, String)}.
+     * Entity changes arrive from the message bus, so changes via MQTT, other
+     * plugins and other instances of this service are published as well.
+     */
+    @Override
+    public void messageReceived(EntityChangedMessage message) {
+        HubNotifier notifier = hubNotifier;
+        Entity entity = message.getEntity();
+        if (notifier == null || entity == null) {
+            return;
+        }
+        EntitySetTable table = getEntitySetTable();
+        EntityType entityType = entity.getEntityType();
+        List<String> paths = new ArrayList<>();
+        if (table.classify(entityType.plural, 0) == EntitySetTable.ALLOWED) {
+            paths.add("/" + entityType.plural);
+            Id id = entity.getId();
+            if (id != null) {
+                paths.add("/" + entityType.plural + "(" + id.getUrl() + ")");
+            }
+        }
+        for (NavigationPropertyEntity parentProperty : entityType.getNavigationEntities()) {
+            Entity parent = entity.getProperty(parentProperty);
+            NavigationPropertyMain inverse = parentProperty.getInverse();
+            if (parent == null || parent.getId() == null || inverse == null) {
+                continue;
+            }
+            String parentSet = parentProperty.getEntityType().plural;
+            if (table.classify(parentSet, 0) == EntitySetTable.ALLOWED) {
+                paths.add("/" + parentSet + "(" + parent.getId().getUrl() + ")/" + inverse.getName());
+            }
+        }
+        for (String topicPrefix : topicPrefixes.values()) {
+            for (String path : paths) {
+                StringBuilder topic = new StringBuilder(topicPrefix);
+                TopicCanonicalizer.appendEncoded(topic, path);
+                notifier.publish(topic.toString());
+            }
+        }
+        for (String topic : topicRegistry.get(entityType.plural)) {
+            notifier.publish(topic);
+        }
+    }
+
+    /**
+     * Topics with a query or with more than one path segment are not among
+     * the topics published for each changed entity, so they are kept when
+     * they are handed out.
+     */
+    private boolean isRecorded(String urlPath, QueryOptions queryOptions) {
+        return hubNotifier != null && (queryOptions != null || urlPath.indexOf('/', 1) >= 0);
+    }
+
+    /**
+     * Keeps the topic under the entity set of the last entity set segment of
+     * the path, e.g. Observations for /Datastreams(5)/Observations/$ref, so
+     * that it is published when an entity of that entity set changes.
+     */
+    private void recordTopic(String urlPath, String topic) {
+        EntitySetTable table = getEntitySetTable();
+        String entitySet = null;
+        int start = 1;
+        while (start > 0) {
+            String segmentSet = table.getEntitySet(urlPath, start);
+            if (segmentSet != null) {
+                entitySet = segmentSet;
+            }
+            start = urlPath.indexOf('/', start) + 1;
+        }
+        if (entitySet != null) {
+            topicRegistry.add(entitySet, topic);
+        }
+    }
+
+    /**
+     * The discovery decision for a read request.
+     *
+     * @param queryOptions The parsed query, null if there is no query or
+     *        queries are not allowed.
+     */
+    private Discovery getReadDiscovery(byte verdict, String odataQuery, QueryOptions queryOptions) {
+        if (verdict == EntitySetTable.INVALID) {
+            return Discovery.ENTITY_INVALID;
+        }
+        if (verdict == EntitySetTable.NOT_ALLOWED) {
+            return Discovery.ENTITY_NOT_ALLOWED;
+        }
+        if (odataQuery != null) {
+            if (!allowOdataQuery) {
+                return Discovery.ODATA_QUERY_DISABLED;
+            }
+            boolean filterDisabled = !allowFilter && queryOptions.hasFilter();
+            boolean expandDisabled = !allowExpand && queryOptions.hasExpand();
+            if (filterDisabled && expandDisabled) {
+                return Discovery.ODATA_FILTER_EXPAND_DISABLED;
+            } else if (filterDisabled) {
+                return Discovery.ODATA_FILTER_DISABLED;
+            } else if (expandDisabled) {
+                return Discovery.ODATA_EXPAND_DISABLED;
+            }
+        }
+        return Discovery.SELF;
+    }
+
+    private QueryOptions getQueryOptions(String odataQuery) {
+        return (odataQuery == null || !allowOdataQuery) ? null : topicCanonicalizer.getQueryOptions(odataQuery);
+    }
+
+    /**
+     * The Link headers of a read request, counted in the metrics.
+     */
+    private List<String> getReadLinks(byte verdict, Version version, String urlPath, String odataQuery) {
+        QueryOptions queryOptions = getQueryOptions(odataQuery);
+        Discovery discovery = getReadDiscovery(verdict, odataQuery, queryOptions);
+        if (metrics != null) {
+            metrics.count(discovery);
+        }
+        if (discovery == Discovery.SELF) {
+            String selfLink = renderSelfLink(version, urlPath, queryOptions);
+            if (isRecorded(urlPath, queryOptions)) {
+                recordTopic(urlPath, selfLink.substring(1, selfLink.length() - SELF_LINK_SUFFIX.length()));
+            }
+            return List.of(hubLink, selfLink);
+        }
+        return links.get(discovery);
+    }
+
+    /**
+     * Renders the rel="self" Link header value into a precisely sized
+     * builder. The path is encoded and the query is replaced by its canonical
+     * form, see {@link TopicCanonicalizer}.
+     */
+    private String renderSelfLink(Version version, String urlPath, QueryOptions queryOptions) {
+        String canonicalQuery = (queryOptions == null) ? "" : queryOptions.getCanonical();
+        String prefix = getTopicPrefix(version);
+        StringBuilder selfLink = new StringBuilder(1 + getTopicLength(prefix, urlPath, canonicalQuery) + SELF_LINK_SUFFIX.length()).append('<');
+        return appendTopic(selfLink, prefix, urlPath, canonicalQuery).append(SELF_LINK_SUFFIX).toString();
+    }
+
+    /**
+     * Renders the canonical topic URL, as in the rel="self" Link header.
+     */
+    private String renderTopic(Version version, String urlPath, QueryOptions queryOptions) {
+        String canonicalQuery = (queryOptions == null) ? "" : queryOptions.getCanonical();
+        String prefix = getTopicPrefix(version);
+        return appendTopic(new StringBuilder(getTopicLength(prefix, urlPath, canonicalQuery)), prefix, urlPath, canonicalQuery).toString();
+    }
+
+    private String getTopicPrefix(Version version) {
+        String prefix = topicPrefixes.get(version);
+        return (prefix == null) ? rootUrl + "/" + version : prefix;
+    }
+
+    private static int getTopicLength(String prefix, String urlPath, String canonicalQuery) {
+        int length = prefix.length() + TopicCanonicalizer.encodedLength(urlPath);
+        return canonicalQuery.isEmpty() ? length : length + 1 + canonicalQuery.length();
+    }
+
+    private static StringBuilder appendTopic(StringBuilder target, String prefix, String urlPath, String canonicalQuery) {
+        target.append(prefix);
+        TopicCanonicalizer.appendEncoded(target, urlPath);
+        if (!canonicalQuery.isEmpty()) {
+            target.append('?').append(canonicalQuery);
+        }
+        return target;
+    }
+
+    private String renderHelpLink(String tag) {
+        return "<" + helpUrl + tag + ">; rel=\"help\"";
+    }
+
+    /**
+     * Sets the entity sets that are otherwise taken from the model registry on
+     * first use. This allows to drive the plugin without a persistence backend.
+     *
+     * @param entitySets The names of the entity sets of the data model.
+     */
+    void initEntitySets(Collection<String> entitySets) {
+        entitySetTable = createEntitySetTable(entitySets);
+    }
 
-        if ((validEntities == null) || (entity == null))
-            return false;
+    private EntitySetTable createEntitySetTable(Collection<String> entitySets) {
+        for (String rootTopic : rootTopics) {
+            if (!"-".equals(rootTopic) && entitySets.stream().noneMatch(entitySet -> !rootTopic.isEmpty() && entitySet.startsWith(rootTopic))) {
+                LOGGER.warn("Root topic '{}' in {} does not match any entity set", rootTopic, TAG_ROOT_TOPICS);
+            }
+        }
+        return new EntitySetTable(entitySets, rootTopics);
+    }
 
-        for (String e : validEntities) {
-            if (entity.startsWith(e))
-                return true;
+    private EntitySetTable getEntitySetTable() {
+        EntitySetTable table = entitySetTable;
+        if (table == null) {
+            Set<String> entitySets = new HashSet<>();
+            for (EntityType et : settings.getModelRegistry().getEntityTypes()) {
+                entitySets.add(et.plural);
+            }
+            table = createEntitySetTable(entitySets);
+            entitySetTable = table;
         }
-        return false;
+        return table;
     }
 
 }
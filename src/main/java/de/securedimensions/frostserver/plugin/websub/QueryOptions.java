@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2024 Secure Dimensions GmbH, D-81377
+ * Munich, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.securedimensions.frostserver.plugin.websub;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The query options of a request, tokenized in a single pass: the options are
+ * split on '&' outside of single quoted strings, and the presence of $filter
+ * and $expand is recorded on the way, including a $filter nested in an
+ * $expand, e.g. $expand=Observations($filter=result gt 5). Values that merely
+ * contain "filter=" or "expand=", e.g. in a string literal, are not mistaken
+ * for options. Instances are immutable and cached by the
+ * {@link TopicCanonicalizer}.
+ *
+ * @author securedimensions
+ */
+final class QueryOptions {
+
+    private static final String FILTER = "filter";
+    private static final String EXPAND = "expand";
+
+    private final String canonical;
+    private final boolean filter;
+    private final boolean expand;
+
+    private QueryOptions(String canonical, boolean filter, boolean expand) {
+        this.canonical = canonical;
+        this.filter = filter;
+        this.expand = expand;
+    }
+
+    /**
+     * @param odataQuery The decoded query of a request.
+     * @return The parsed query options.
+     */
+    static QueryOptions parse(String odataQuery) {
+        List<String> options = new ArrayList<>();
+        boolean filter = false;
+        boolean expand = false;
+        boolean inString = false;
+        boolean inValue = false;
+        boolean inExpand = false;
+        int start = 0;
+        int length = odataQuery.length();
+        for (int i = 0; i < length; i++) {
+            char c = odataQuery.charAt(i);
+            if (c == '\'') {
+                // A quote in a string is escaped by doubling it, toggling twice
+                inString = !inString;
+            } else if (inString) {
+                continue;
+            } else if (c == '&') {
+                if (i > start) {
+                    options.add(odataQuery.substring(start, i));
+                }
+                start = i + 1;
+                inValue = false;
+                inExpand = false;
+            } else if (c == '=' && !inValue) {
+                inValue = true;
+                if (isOptionName(odataQuery, start, i, FILTER)) {
+                    filter = true;
+                } else if (isOptionName(odataQuery, start, i, EXPAND)) {
+                    expand = true;
+                    inExpand = true;
+                }
+            } else if (inExpand && (c == '(' || c == ';') && isNestedOption(odataQuery, i + 1, FILTER)) {
+                filter = true;
+            }
+        }
+        if (length > start) {
+            options.add(odataQuery.substring(start));
+        }
+        return new QueryOptions(TopicCanonicalizer.canonicalize(options), filter, expand);
+    }
+
+    /**
+     * @return true if the name between start and end is the option, with or
+     *         without the leading '$'.
+     */
+    private static boolean isOptionName(String odataQuery, int start, int end, String option) {
+        int from = (start < end && odataQuery.charAt(start) == '$') ? start + 1 : start;
+        return end - from == option.length() && odataQuery.regionMatches(true, from, option, 0, option.length());
+    }
+
+    /**
+     * @return true if the option, followed by '=', starts at the position.
+     */
+    private static boolean isNestedOption(String odataQuery, int start, String option) {
+        int from = (start < odataQuery.length() && odataQuery.charAt(start) == '$') ? start + 1 : start;
+        int end = from + option.length();
+        return end < odataQuery.length() && odataQuery.charAt(end) == '=' && odataQuery.regionMatches(true, from, option, 0, option.length());
+    }
+
+    /**
+     * @return The canonical, encoded query, possibly empty.
+     */
+    String getCanonical() {
+        return canonical;
+    }
+
+    /**
+     * @return true if the query contains $filter, also nested in $expand.
+     */
+    boolean hasFilter() {
+        return filter;
+    }
+
+    /**
+     * @return true if the query contains $expand.
+     */
+    boolean hasExpand() {
+        return expand;
+    }
+
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2024 Secure Dimensions GmbH, D-81377
+ * Munich, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.securedimensions.frostserver.plugin.websub;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Turns the decoded path and query of a request into the canonical form used
+ * in topic URLs, so that semantically equal requests produce the same
+ * rel="self" link. The query options are put in a fixed order and all
+ * characters that are not allowed in a URL, as well as ",", "%" and "&", are
+ * percent-encoded. The query arrives decoded, so a "&" in an option, e.g. in
+ * a string literal, must be encoded to not split the option.
+ * Parsed queries, see {@link QueryOptions}, are kept in a bounded cache, so
+ * repeated requests for the same query are tokenized only once. Cache hits
+ * do not lock, they only stamp the entry with the time of the access. When
+ * the cache is full, the least recently used eighth of the entries is
+ * evicted in one go. Queries longer than {@link #MAX_CACHED_LENGTH} are not
+ * cached, which bounds the memory of the cache.
+ *
+ * @author securedimensions
+ */
+final class TopicCanonicalizer {
+
+    /**
+     * The order of the query options in a canonical topic. Other options
+     * follow in alphabetical order.
+     */
+    private static final List<String> OPTION_ORDER = List.of(
+            "$select", "$expand", "$filter", "$orderby", "$top", "$skip", "$count", "$resultformat", "$format");
+
+    private static final Comparator<String> OPTION_COMPARATOR = Comparator
+            .comparingInt(TopicCanonicalizer::getOptionRank)
+            .thenComparing(TopicCanonicalizer::getOptionName, String.CASE_INSENSITIVE_ORDER);
+
+    /**
+     * The maximum length of a query that is cached. Longer queries are rare
+     * and parsed on each request.
+     */
+    static final int MAX_CACHED_LENGTH = 1024;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final Map<String, CacheEntry> cache = new ConcurrentHashMap<>();
+    private final ReentrantLock evictLock = new ReentrantLock();
+    private final int maxEntries;
+
+    TopicCanonicalizer(int cacheSize) {
+        maxEntries = Math.max(1, cacheSize);
+    }
+
+    /**
+     * @param odataQuery The decoded query of a request.
+     * @return The parsed query options, from the cache if possible.
+     */
+    QueryOptions getQueryOptions(String odataQuery) {
+        CacheEntry entry = cache.get(odataQuery);
+        if (entry != null) {
+            entry.lastAccess = System.nanoTime();
+            return entry.queryOptions;
+        }
+        QueryOptions queryOptions = QueryOptions.parse(odataQuery);
+        if (odataQuery.length() > MAX_CACHED_LENGTH) {
+            return queryOptions;
+        }
+        CacheEntry previous = cache.putIfAbsent(odataQuery, new CacheEntry(queryOptions));
+        if (previous != null) {
+            return previous.queryOptions;
+        }
+        if (cache.size() > maxEntries && evictLock.tryLock()) {
+            try {
+                evict();
+            } finally {
+                evictLock.unlock();
+            }
+        }
+        return queryOptions;
+    }
+
+    /**
+     * Removes the least recently used entries until an eighth of the cache is
+     * free again, so a full cache is not trimmed on every miss. Finding the
+     * oldest entries sorts the access stamps, which is amortised over the
+     * misses that fill the freed eighth.
+     */
+    private void evict() {
+        int excess = cache.size() - (maxEntries - maxEntries / 8);
+        if (excess <= 0) {
+            return;
+        }
+        long[] stamps = new long[cache.size()];
+        int count = 0;
+        for (CacheEntry entry : cache.values()) {
+            if (count == stamps.length) {
+                break;
+            }
+            stamps[count++] = entry.lastAccess;
+        }
+        if (count == 0) {
+            return;
+        }
+        Arrays.sort(stamps, 0, count);
+        long cutoff = stamps[Math.min(excess, count) - 1];
+        cache.values().removeIf(entry -> entry.lastAccess - cutoff <= 0);
+    }
+
+    /**
+     * Sorts the query options in place and renders them as canonical query.
+     * The names of the options in {@link #OPTION_ORDER} are written as listed
+     * there, e.g. $orderBy as $orderby.
+     *
+     * @param options The decoded query options, e.g. "$top=10".
+     * @return The canonical, encoded query, possibly empty.
+     */
+    static String canonicalize(List<String> options) {
+        options.sort(OPTION_COMPARATOR);
+        StringBuilder canonical = new StringBuilder(64);
+        for (String option : options) {
+            if (canonical.length() > 0) {
+                canonical.append('&');
+            }
+            int rank = getOptionRank(option);
+            if (rank < OPTION_ORDER.size()) {
+                String name = OPTION_ORDER.get(rank);
+                canonical.append(name);
+                appendEncoded(canonical, option, name.length());
+            } else {
+                appendEncoded(canonical, option, 0);
+            }
+        }
+        return canonical.toString();
+    }
+
+    /**
+     * A cached query with the time of its last access. The stamp is written
+     * without synchronisation, a lost update only makes the eviction a bit
+     * less exact.
+     */
+    private static final class CacheEntry {
+
+        private final QueryOptions queryOptions;
+        private long lastAccess;
+
+        private CacheEntry(QueryOptions queryOptions) {
+            this.queryOptions = queryOptions;
+            lastAccess = System.nanoTime();
+        }
+    }
+
+    private static String getOptionName(String option) {
+        int end = option.indexOf('=');
+        return (end < 0) ? option : option.substring(0, end);
+    }
+
+    private static int getOptionRank(String option) {
+        String name = getOptionName(option);
+        for (int i = 0; i < OPTION_ORDER.size(); i++) {
+            if (OPTION_ORDER.get(i).equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return OPTION_ORDER.size();
+    }
+
+    private static boolean mustEncode(char c) {
+        if (c <= ' ' || c >= 0x7F) {
+            return true;
+        }
+        switch (c) {
+            case '"':
+            case '#':
+            case '%':
+            case '&':
+            case '+':
+            case ',':
+            case '<':
+            case '>':
+            case '[':
+            case '\\':
+            case ']':
+            case '^':
+            case '`':
+            case '{':
+            case '|':
+            case '}':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return The length of the value after {@link #appendEncoded}.
+     */
+    static int encodedLength(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                int codePoint = value.codePointAt(i);
+                length += 3 * new String(Character.toChars(codePoint)).getBytes(UTF_8).length;
+                i += Character.charCount(codePoint) - 1;
+            } else {
+                length += mustEncode(c) ? 3 : 1;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Appends the value, percent-encoding the characters that are not
+     * allowed in a URL, as well as "%", "&", "+" and ",".
+     */
+    static void appendEncoded(StringBuilder target, String value) {
+        appendEncoded(target, value, 0);
+    }
+
+    private static void appendEncoded(StringBuilder target, String value, int start) {
+        for (int i = start; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                int codePoint = value.codePointAt(i);
+                for (byte b : new String(Character.toChars(codePoint)).getBytes(UTF_8)) {
+                    appendEscape(target, b & 0xFF);
+                }
+                i += Character.charCount(codePoint) - 1;
+            } else if (mustEncode(c)) {
+                appendEscape(target, c);
+            } else {
+                target.append(c);
+            }
+        }
+    }
+
+    private static void appendEscape(StringBuilder target, int value) {
+        target.append('%').append(HEX[value >> 4]).append(HEX[value & 0xF]);
+    }
+
+}
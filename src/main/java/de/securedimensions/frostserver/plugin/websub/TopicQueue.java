@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2024 Secure Dimensions GmbH, D-81377
+ * Munich, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.securedimensions.frostserver.plugin.websub;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded FIFO queue of pending topic URLs. A topic that is already pending
+ * is not added a second time, so the memory used by the queue is bounded by
+ * the number of distinct topics, up to the capacity. When the queue is full,
+ * the overflow policy decides which topic is dropped.
+ *
+ * @author securedimensions
+ */
+final class TopicQueue {
+
+    enum OverflowPolicy {
+        /**
+         * Drop the topic that is offered to the full queue.
+         */
+        DROP_NEWEST,
+        /**
+         * Drop the topic that is pending the longest to make room.
+         */
+        DROP_OLDEST
+    }
+
+    private final LinkedHashSet<String> topics = new LinkedHashSet<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    TopicQueue(int capacity, OverflowPolicy overflowPolicy) {
+        this.capacity = Math.max(1, capacity);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Adds the topic unless it is already pending.
+     *
+     * @param topic The topic URL.
+     * @return false if a topic had to be dropped because the queue is full.
+     */
+    boolean offer(String topic) {
+        lock.lock();
+        try {
+            if (topics.contains(topic)) {
+                coalesced.increment();
+                return true;
+            }
+            boolean full = topics.size() >= capacity;
+            if (full) {
+                dropped.increment();
+                if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                    return false;
+                }
+                Iterator<String> oldest = topics.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+            topics.add(topic);
+            notEmpty.signal();
+            return !full;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest pending topic, waiting until one is available.
+     */
+    String take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (topics.isEmpty()) {
+                notEmpty.await();
+            }
+            return removeOldest();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest pending topic, waiting up to the given time for one
+     * to become available.
+     *
+     * @return The topic, or null if none became available in time.
+     */
+    String poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (topics.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return removeOldest();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String removeOldest() {
+        Iterator<String> oldest = topics.iterator();
+        String topic = oldest.next();
+        oldest.remove();
+        return topic;
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return topics.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+}
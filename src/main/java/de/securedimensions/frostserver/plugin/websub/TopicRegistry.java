@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2024 Secure Dimensions GmbH, D-81377
+ * Munich, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.securedimensions.frostserver.plugin.websub;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The topic URLs handed out in a Link rel="self" that are not published for
+ * every changed entity anyway, e.g. topics with a query. Each topic is kept
+ * under the entity set whose changes update it, so a change to that entity
+ * set can publish it. The number of topics is bounded; once it is reached,
+ * further topics are not kept and thus not published.
+ *
+ * @author securedimensions
+ */
+final class TopicRegistry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TopicRegistry.class);
+
+    private final ConcurrentHashMap<String, Set<String>> topics = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int maxTopics;
+    private volatile boolean full;
+
+    TopicRegistry(int maxTopics) {
+        this.maxTopics = maxTopics;
+    }
+
+    /**
+     * Keeps the topic unless it is already kept or the registry is full.
+     *
+     * @param entitySet The entity set whose changes update the topic.
+     * @param topic The topic URL.
+     */
+    void add(String entitySet, String topic) {
+        Set<String> entitySetTopics = topics.get(entitySet);
+        if (entitySetTopics == null) {
+            entitySetTopics = topics.computeIfAbsent(entitySet, key -> ConcurrentHashMap.newKeySet());
+        } else if (entitySetTopics.contains(topic)) {
+            return;
+        }
+        if (size.incrementAndGet() > maxTopics) {
+            size.decrementAndGet();
+            if (!full) {
+                full = true;
+                LOGGER.warn("More than {} topics with a query or a longer path, further topics are not published", maxTopics);
+            }
+            return;
+        }
+        if (!entitySetTopics.add(topic)) {
+            size.decrementAndGet();
+        }
+    }
+
+    /**
+     * @param entitySet The name of the entity set.
+     * @return The topics that are updated by a change to the entity set.
+     */
+    Collection<String> get(String entitySet) {
+        Set<String> entitySetTopics = topics.get(entitySet);
+        return (entitySetTopics == null) ? Set.of() : entitySetTopics;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2024 Secure Dimensions GmbH, D-81377
+ * Munich, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.securedimensions.frostserver.plugin.websub;
+
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_ERROR_ENTITY_INVALID;
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_ERROR_ENTITY_NOT_ALLOWED;
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_ERROR_ODATA_EXPAND_DISABLED;
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_ERROR_ODATA_FILTER_DISABLED;
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_ERROR_ODATA_QUERY_DISABLED;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters and a latency histogram for the discovery and publish paths of
+ * the plugin. All values are kept in LongAdders, so recording is cheap and
+ * does not contend between request threads. The metrics are exposed over
+ * JMX and as Prometheus text.
+ *
+ * @author securedimensions
+ */
+class WebSubMetrics implements WebSubMetricsMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WebSubMetrics.class);
+
+    static final String OBJECT_NAME_PREFIX = "de.securedimensions.frostserver.plugin.websub:type=WebSubMetrics,service=";
+
+    /**
+     * Upper bounds of the latency histogram buckets, in nanoseconds.
+     */
+    private static final long[] LATENCY_BOUNDS = {250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 1_000_000};
+
+    private final HubNotifier hubNotifier;
+    private ObjectName objectName;
+    private final LongAdder discoverySelf = new LongAdder();
+    // Read-only after construction, so safe to share between threads
+    private final Map<String, LongAdder> discoveryHelp = new LinkedHashMap<>();
+    private final LongAdder[] latencyBuckets = new LongAdder[LATENCY_BOUNDS.length + 1];
+    private final LongAdder latencySum = new LongAdder();
+
+    WebSubMetrics(HubNotifier hubNotifier) {
+        this.hubNotifier = hubNotifier;
+        for (String tag : new String[]{TAG_ERROR_ENTITY_INVALID, TAG_ERROR_ENTITY_NOT_ALLOWED, TAG_ERROR_ODATA_QUERY_DISABLED, TAG_ERROR_ODATA_FILTER_DISABLED, TAG_ERROR_ODATA_EXPAND_DISABLED}) {
+            discoveryHelp.put(tag, new LongAdder());
+        }
+        for (int i = 0; i < latencyBuckets.length; i++) {
+            latencyBuckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Registers the metrics as MBean, named after the service, so several
+     * services in one JVM do not collide. An MBean left behind by a previous
+     * instance of the same service is replaced.
+     *
+     * @param serviceRootUrl The root URL of the service.
+     */
+    synchronized void registerMBean(String serviceRootUrl) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(serviceRootUrl));
+            if (server.isRegistered(name)) {
+                LOGGER.info("Replacing the stale WebSub metrics MBean {}", name);
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(this, WebSubMetricsMBean.class), name);
+            objectName = name;
+        } catch (JMException ex) {
+            LOGGER.warn("Failed to register the WebSub metrics MBean: {}", ex.getMessage());
+        }
+    }
+
+    synchronized void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException ex) {
+            LOGGER.debug("Failed to unregister the WebSub metrics MBean: {}", ex.getMessage());
+        }
+        objectName = null;
+    }
+
+    /**
+     * Counts the discovery decision of a read request.
+     */
+    void count(Discovery discovery) {
+        if (discovery == Discovery.SELF) {
+            discoverySelf.increment();
+        }
+        for (String tag : discovery.helpTags) {
+            discoveryHelp.get(tag).increment();
+        }
+    }
+
+    /**
+     * Records the time the plugin added to a read request.
+     *
+     * @param nanos The time in nanoseconds.
+     */
+    void recordLatency(long nanos) {
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS.length && nanos > LATENCY_BOUNDS[bucket]) {
+            bucket++;
+        }
+        latencyBuckets[bucket].increment();
+        latencySum.add(nanos);
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format.
+     */
+    void writePrometheus(Writer writer) throws IOException {
+        writer.write("# HELP websub_discovery_self_total Read requests that returned a rel=\"self\" Link header.\n");
+        writer.write("# TYPE websub_discovery_self_total counter\n");
+        writer.write("websub_discovery_self_total " + discoverySelf.sum() + "\n");
+        writer.write("# HELP websub_discovery_help_total Read requests that returned a rel=\"help\" Link header, by reason.\n");
+        writer.write("# TYPE websub_discovery_help_total counter\n");
+        for (Map.Entry<String, LongAdder> entry : discoveryHelp.entrySet()) {
+            writer.write("websub_discovery_help_total{reason=\"" + entry.getKey() + "\"} " + entry.getValue().sum() + "\n");
+        }
+
+        writer.write("# HELP websub_execute_overhead_seconds Time the plugin adds to a read request.\n");
+        writer.write("# TYPE websub_execute_overhead_seconds histogram\n");
+        long cumulative = 0;
+        for (int i = 0; i < LATENCY_BOUNDS.length; i++) {
+            cumulative += latencyBuckets[i].sum();
+            writer.write("websub_execute_overhead_seconds_bucket{le=\"" + toSeconds(LATENCY_BOUNDS[i]) + "\"} " + cumulative + "\n");
+        }
+        cumulative += latencyBuckets[LATENCY_BOUNDS.length].sum();
+        writer.write("websub_execute_overhead_seconds_bucket{le=\"+Inf\"} " + cumulative + "\n");
+        writer.write("websub_execute_overhead_seconds_sum " + toSeconds(latencySum.sum()) + "\n");
+        writer.write("websub_execute_overhead_seconds_count " + cumulative + "\n");
+
+        if (hubNotifier != null) {
+            writer.write("# HELP websub_publish_queue_depth Distinct topics waiting to be sent to the Hub.\n");
+            writer.write("# TYPE websub_publish_queue_depth gauge\n");
+            writer.write("websub_publish_queue_depth " + hubNotifier.getQueueDepth() + "\n");
+            writer.write("# HELP websub_publish_topics_total Updated topics, by what happened to their notification.\n");
+            writer.write("# TYPE websub_publish_topics_total counter\n");
+            writer.write("websub_publish_topics_total{result=\"sent\"} " + hubNotifier.getSent() + "\n");
+            writer.write("websub_publish_topics_total{result=\"coalesced\"} " + hubNotifier.getCoalesced() + "\n");
+            writer.write("websub_publish_topics_total{result=\"dropped\"} " + hubNotifier.getDropped() + "\n");
+            writer.write("websub_publish_topics_total{result=\"failed\"} " + hubNotifier.getFailed() + "\n");
+            writer.write("websub_publish_topics_total{result=\"rejected\"} " + hubNotifier.getRejected() + "\n");
+        }
+        writer.flush();
+    }
+
+    private static String toSeconds(long nanos) {
+        return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+    }
+
+    @Override
+    public long getDiscoverySelf() {
+        return discoverySelf.sum();
+    }
+
+    @Override
+    public long getDiscoveryEntityInvalid() {
+        return discoveryHelp.get(TAG_ERROR_ENTITY_INVALID).sum();
+    }
+
+    @Override
+    public long getDiscoveryEntityNotAllowed() {
+        return discoveryHelp.get(TAG_ERROR_ENTITY_NOT_ALLOWED).sum();
+    }
+
+    @Override
+    public long getDiscoveryOdataQueryDisabled() {
+        return discoveryHelp.get(TAG_ERROR_ODATA_QUERY_DISABLED).sum();
+    }
+
+    @Override
+    public long getDiscoveryOdataQueryFilterDisabled() {
+        return discoveryHelp.get(TAG_ERROR_ODATA_FILTER_DISABLED).sum();
+    }
+
+    @Override
+    public long getDiscoveryOdataQueryExpandDisabled() {
+        return discoveryHelp.get(TAG_ERROR_ODATA_EXPAND_DISABLED).sum();
+    }
+
+    @Override
+    public long getExecuteCount() {
+        long count = 0;
+        for (LongAdder bucket : latencyBuckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public double getExecuteMeanNanos() {
+        long count = getExecuteCount();
+        return (count == 0) ? 0 : (double) latencySum.sum() / count;
+    }
+
+    @Override
+    public int getPublishQueueDepth() {
+        return (hubNotifier == null) ? 0 : hubNotifier.getQueueDepth();
+    }
+
+    @Override
+    public long getPublishSent() {
+        return (hubNotifier == null) ? 0 : hubNotifier.getSent();
+    }
+
+    @Override
+    public long getPublishCoalesced() {
+        return (hubNotifier == null) ? 0 : hubNotifier.getCoalesced();
+    }
+
+    @Override
+    public long getPublishDropped() {
+        return (hubNotifier == null) ? 0 : hubNotifier.getDropped();
+    }
+
+    @Override
+    public long getPublishFailed() {
+        return (hubNotifier == null) ? 0 : hubNotifier.getFailed();
+    }
+
+    @Override
+    public long getPublishRejected() {
+        return (hubNotifier == null) ? 0 : hubNotifier.getRejected();
+    }
+
+}
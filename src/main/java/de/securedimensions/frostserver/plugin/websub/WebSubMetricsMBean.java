@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2024 Secure Dimensions GmbH, D-81377
+ * Munich, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.securedimensions.frostserver.plugin.websub;
+
+/**
+ * The JMX view of the WebSub plugin metrics.
+ *
+ * @author securedimensions
+ */
+public interface WebSubMetricsMBean {
+
+    public long getDiscoverySelf();
+
+    public long getDiscoveryEntityInvalid();
+
+    public long getDiscoveryEntityNotAllowed();
+
+    public long getDiscoveryOdataQueryDisabled();
+
+    public long getDiscoveryOdataQueryFilterDisabled();
+
+    public long getDiscoveryOdataQueryExpandDisabled();
+
+    public long getExecuteCount();
+
+    public double getExecuteMeanNanos();
+
+    public int getPublishQueueDepth();
+
+    public long getPublishSent();
+
+    public long getPublishCoalesced();
+
+    public long getPublishDropped();
+
+    public long getPublishFailed();
+
+    public long getPublishRejected();
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2024 Secure Dimensions GmbH, D-81377
+ * Munich, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.securedimensions.frostserver.plugin.websub;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.sun.net.httpserver.HttpServer;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for the publish notifications, retries and circuit breaker of
+ * the {@link HubNotifier}, against a local HTTP server as Hub.
+ *
+ * @author securedimensions
+ */
+public class HubNotifierTest {
+
+    private static final String TOPIC = "http://localhost:8080/FROST-Server/v1.1/Things";
+
+    private HttpServer hub;
+    private URI hubUri;
+    // The status codes the Hub answers with, the last one is repeated
+    private final List<Integer> statusCodes = new CopyOnWriteArrayList<>();
+    private final List<String> bodies = new CopyOnWriteArrayList<>();
+    private final List<Long> times = new CopyOnWriteArrayList<>();
+    private HubNotifier notifier;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        hub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        hub.createContext("/", exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                bodies.add(new String(body.readAllBytes(), UTF_8));
+            }
+            times.add(System.nanoTime());
+            int statusCode = statusCodes.get(Math.min(bodies.size(), statusCodes.size()) - 1);
+            exchange.sendResponseHeaders(statusCode, -1);
+            exchange.close();
+        });
+        hub.start();
+        hubUri = URI.create("http://localhost:" + hub.getAddress().getPort() + "/publish");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (notifier != null) {
+            notifier.close();
+        }
+        hub.stop(0);
+    }
+
+    private HubNotifier createNotifier(int maxAttempts, int threshold, int open) {
+        Properties properties = new Properties();
+        properties.put("serviceRootUrl", "http://localhost:8080/FROST-Server");
+        properties.put("plugins.websub.publish.maxAttempts", Integer.toString(maxAttempts));
+        properties.put("plugins.websub.publish.retryDelay", "10");
+        properties.put("plugins.websub.publish.maxRetryDelay", "20");
+        properties.put("plugins.websub.publish.circuitBreaker.threshold", Integer.toString(threshold));
+        properties.put("plugins.websub.publish.circuitBreaker.open", Integer.toString(open));
+        notifier = new HubNotifier(hubUri, new CoreSettings(properties).getPluginSettings());
+        return notifier;
+    }
+
+    private static void await(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                Assertions.fail(message);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testPublish() throws InterruptedException {
+        statusCodes.add(204);
+        createNotifier(3, 10, 1000).publish(TOPIC);
+        await(() -> notifier.getSent() == 1, "topic is sent");
+        Assertions.assertEquals(List.of("hub.mode=publish&hub.url=" + URLEncoder.encode(TOPIC, UTF_8)), bodies);
+    }
+
+    @Test
+    public void testRetryAfterServerError() throws InterruptedException {
+        statusCodes.addAll(List.of(503, 204));
+        createNotifier(3, 10, 1000).publish(TOPIC);
+        await(() -> notifier.getSent() == 1, "topic is sent after a retry");
+        Assertions.assertEquals(2, bodies.size(), "one retry");
+        Assertions.assertEquals(bodies.get(0), bodies.get(1), "the retry repeats the notification");
+        Assertions.assertEquals(0, notifier.getFailed());
+    }
+
+    @Test
+    public void testClientErrorIsNotRetried() throws InterruptedException {
+        statusCodes.add(400);
+        createNotifier(3, 10, 1000).publish(TOPIC);
+        await(() -> bodies.size() == 1, "notification is sent");
+        Thread.sleep(200);
+        Assertions.assertEquals(1, bodies.size(), "HTTP 4xx is not retried");
+        Assertions.assertEquals(0, notifier.getSent());
+        Assertions.assertEquals(0, notifier.getFailed());
+        Assertions.assertEquals(1, notifier.getRejected(), "HTTP 4xx is counted as rejected");
+    }
+
+    @Test
+    public void testGiveUpAfterMaxAttempts() throws InterruptedException {
+        statusCodes.add(503);
+        createNotifier(3, 10, 1000).publish(TOPIC);
+        await(() -> notifier.getFailed() == 1, "notification is given up");
+        Thread.sleep(200);
+        Assertions.assertEquals(3, bodies.size(), "maxAttempts attempts");
+        Assertions.assertEquals(0, notifier.getSent());
+    }
+
+    @Test
+    public void testCircuitBreaker() throws InterruptedException {
+        statusCodes.addAll(List.of(503, 503, 204));
+        createNotifier(5, 2, 500).publish(TOPIC);
+        await(() -> notifier.getSent() == 1, "topic is sent once the circuit closes");
+        Assertions.assertEquals(3, bodies.size());
+        long pause = times.get(2) - times.get(1);
+        Assertions.assertTrue(pause >= TimeUnit.MILLISECONDS.toNanos(450), "no request while the circuit is open, paused " + TimeUnit.NANOSECONDS.toMillis(pause) + " ms");
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2024 Secure Dimensions GmbH, D-81377
+ * Munich, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.securedimensions.frostserver.plugin.websub;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for the cache of parsed queries.
+ *
+ * @author securedimensions
+ */
+public class TopicCanonicalizerTest {
+
+    @Test
+    public void testOptionNamesAreCanonical() {
+        TopicCanonicalizer canonicalizer = new TopicCanonicalizer(8);
+        Assertions.assertEquals("$select=result&$orderby=phenomenonTime&$top=1&foo=Bar",
+                canonicalizer.getQueryOptions("$TOP=1&foo=Bar&$orderBy=phenomenonTime&$Select=result").getCanonical());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedQueriesAreEvicted() throws InterruptedException {
+        TopicCanonicalizer canonicalizer = new TopicCanonicalizer(8);
+        QueryOptions first = null;
+        QueryOptions second = null;
+        for (int i = 0; i < 8; i++) {
+            QueryOptions queryOptions = canonicalizer.getQueryOptions("$top=" + i);
+            first = (i == 0) ? queryOptions : first;
+            second = (i == 1) ? queryOptions : second;
+            Thread.sleep(1);
+        }
+        Assertions.assertSame(first, canonicalizer.getQueryOptions("$top=0"), "cache hit");
+        Thread.sleep(1);
+        canonicalizer.getQueryOptions("$top=8");
+        Assertions.assertSame(first, canonicalizer.getQueryOptions("$top=0"), "a recently used query is kept");
+        Assertions.assertNotSame(second, canonicalizer.getQueryOptions("$top=1"), "the least recently used query is evicted");
+    }
+
+    @Test
+    public void testLongQueryIsNotCached() {
+        TopicCanonicalizer canonicalizer = new TopicCanonicalizer(8);
+        String odataQuery = "$filter=name eq '" + "x".repeat(TopicCanonicalizer.MAX_CACHED_LENGTH) + "'";
+        QueryOptions queryOptions = canonicalizer.getQueryOptions(odataQuery);
+        Assertions.assertNotSame(queryOptions, canonicalizer.getQueryOptions(odataQuery));
+        Assertions.assertEquals(queryOptions.getCanonical(), canonicalizer.getQueryOptions(odataQuery).getCanonical());
+    }
+
+}
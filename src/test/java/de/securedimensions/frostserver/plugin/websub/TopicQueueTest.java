@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2024 Secure Dimensions GmbH, D-81377
+ * Munich, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.securedimensions.frostserver.plugin.websub;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for the bounded, de-duplicating queue of pending topics.
+ *
+ * @author securedimensions
+ */
+public class TopicQueueTest {
+
+    @Test
+    public void testPendingTopicIsCoalesced() throws InterruptedException {
+        TopicQueue queue = new TopicQueue(10, TopicQueue.OverflowPolicy.DROP_NEWEST);
+        Assertions.assertTrue(queue.offer("a"));
+        Assertions.assertTrue(queue.offer("b"));
+        Assertions.assertTrue(queue.offer("a"), "a pending topic is accepted");
+        Assertions.assertEquals(2, queue.size(), "a pending topic is queued once");
+        Assertions.assertEquals(1, queue.getCoalesced());
+        Assertions.assertEquals("a", queue.take(), "FIFO order");
+        Assertions.assertEquals("b", queue.take(), "FIFO order");
+        Assertions.assertTrue(queue.offer("a"), "a sent topic can be queued again");
+        Assertions.assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testDropNewest() throws InterruptedException {
+        TopicQueue queue = new TopicQueue(2, TopicQueue.OverflowPolicy.DROP_NEWEST);
+        queue.offer("a");
+        queue.offer("b");
+        Assertions.assertFalse(queue.offer("c"), "full queue drops the offered topic");
+        Assertions.assertTrue(queue.offer("a"), "a pending topic is coalesced even if the queue is full");
+        Assertions.assertEquals(1, queue.getDropped());
+        Assertions.assertEquals("a", queue.take());
+        Assertions.assertEquals("b", queue.take());
+        Assertions.assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testDropOldest() throws InterruptedException {
+        TopicQueue queue = new TopicQueue(2, TopicQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer("a");
+        queue.offer("b");
+        Assertions.assertFalse(queue.offer("c"), "full queue reports the drop");
+        Assertions.assertEquals(1, queue.getDropped());
+        Assertions.assertEquals(2, queue.size());
+        Assertions.assertEquals("b", queue.take(), "oldest topic was dropped");
+        Assertions.assertEquals("c", queue.take(), "offered topic was queued");
+    }
+
+    @Test
+    public void testPollTimeout() throws InterruptedException {
+        TopicQueue queue = new TopicQueue(2, TopicQueue.OverflowPolicy.DROP_NEWEST);
+        long start = System.nanoTime();
+        Assertions.assertNull(queue.poll(50, TimeUnit.MILLISECONDS), "empty queue times out");
+        Assertions.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50), "poll waited for the timeout");
+        Assertions.assertNull(queue.poll(0, TimeUnit.MILLISECONDS), "zero timeout does not wait");
+        queue.offer("a");
+        Assertions.assertEquals("a", queue.poll(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testTakeWaitsForOffer() throws InterruptedException {
+        TopicQueue queue = new TopicQueue(2, TopicQueue.OverflowPolicy.DROP_NEWEST);
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            queue.offer("a");
+        });
+        producer.start();
+        Assertions.assertEquals("a", queue.poll(5, TimeUnit.SECONDS), "waiting poll returns the offered topic");
+        producer.join();
+    }
+
+}
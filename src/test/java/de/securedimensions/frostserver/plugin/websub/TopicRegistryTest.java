@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2024 Secure Dimensions GmbH, D-81377
+ * Munich, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.securedimensions.frostserver.plugin.websub;
+
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for the bounded registry of handed out topics.
+ *
+ * @author securedimensions
+ */
+public class TopicRegistryTest {
+
+    @Test
+    public void testTopicsAreKeptPerEntitySet() {
+        TopicRegistry registry = new TopicRegistry(10);
+        registry.add("Observations", "a?$top=1");
+        registry.add("Observations", "b?$top=1");
+        registry.add("Observations", "a?$top=1");
+        registry.add("Things", "c?$top=1");
+        Assertions.assertEquals(3, registry.size(), "a kept topic is kept once");
+        Assertions.assertEquals(Set.of("a?$top=1", "b?$top=1"), Set.copyOf(registry.get("Observations")));
+        Assertions.assertEquals(List.of("c?$top=1"), List.copyOf(registry.get("Things")));
+        Assertions.assertTrue(registry.get("Sensors").isEmpty());
+    }
+
+    @Test
+    public void testFullRegistryKeepsNoMoreTopics() {
+        TopicRegistry registry = new TopicRegistry(2);
+        registry.add("Observations", "a");
+        registry.add("Things", "b");
+        registry.add("Observations", "c");
+        Assertions.assertEquals(2, registry.size());
+        Assertions.assertEquals(List.of("a"), List.copyOf(registry.get("Observations")), "no topics are kept beyond the maximum");
+        registry.add("Observations", "a");
+        Assertions.assertEquals(2, registry.size(), "a kept topic is still accepted");
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2024 Secure Dimensions GmbH, D-81377
+ * Munich, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.securedimensions.frostserver.plugin.websub.test;
+
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_ERROR_ENTITY_INVALID;
+import static de.securedimensions.frostserver.plugin.websub.PluginWebSub.TAG_ERROR_ENTITY_NOT_ALLOWED;
+
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsPlus;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing;
+import de.fraunhofer.iosb.ilt.statests.AbstractTestClass;
+import de.fraunhofer.iosb.ilt.statests.ServerVersion;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests the bulk discovery of many topic URLs in one request
+ * e.g. POST http://localhost:8080/FROST-Server/v1.1/$websub/discovery
+ *
+ * @author securedimensions
+ */
+@TestMethodOrder(MethodOrderer.MethodName.class)
+public abstract class BulkDiscoveryTests extends AbstractTestClass {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkDiscoveryTests.class);
+    private static final long serialVersionUID = 1639739965;
+    private static final Map<String, String> SERVER_PROPERTIES = new LinkedHashMap<>();
+
+    static {
+        SERVER_PROPERTIES.put("mqtt.enabled", "false");
+        SERVER_PROPERTIES.put("plugins.plugins", "de.securedimensions.frostserver.plugin.websub.PluginWebSub");
+        SERVER_PROPERTIES.put("plugins.websub.enable", "true");
+        SERVER_PROPERTIES.put("plugins.websub.enable.odataQuery", "true");
+        SERVER_PROPERTIES.put("plugins.websub.enable.bulkDiscovery", "true");
+        SERVER_PROPERTIES.put("plugins.websub.bulkDiscovery.maxUrls", "5");
+        SERVER_PROPERTIES.put("plugins.websub.hubUrl", "https://websub-hub.citiobs.secd.eu/api/subscriptions");
+        SERVER_PROPERTIES.put("plugins.websub.rootTopics", "Observations");
+        SERVER_PROPERTIES.put("plugins.websub.helpUrl", "https://github.com/securedimensions/FROST-Server-WebSub/help");
+    }
+
+    protected static SensorThingsPlus pMdl;
+    protected static SensorThingsService serviceSTAplus;
+
+    public BulkDiscoveryTests(ServerVersion version) {
+        super(version, SERVER_PROPERTIES);
+    }
+
+    @AfterAll
+    public static void tearDown() {
+        LOGGER.info("Tearing down.");
+    }
+
+    @Override
+    protected void setUpVersion() {
+        LOGGER.info("Setting up for version {}.", version.urlPart);
+        try {
+            sMdl = new SensorThingsV11Sensing();
+            pMdl = new SensorThingsPlus();
+            serviceSTAplus = new SensorThingsService(sMdl, pMdl).setBaseUrl(new URL(serverSettings.getServiceUrl(version))).init();
+        } catch (MalformedURLException ex) {
+            LOGGER.error("Failed to create URL", ex);
+        }
+    }
+
+    @Override
+    protected void tearDownVersion() {
+        LOGGER.info("tearing down");
+    }
+
+    /*
+     * Success: each URL gets the links a GET request to it would return
+     */
+    @Test
+    public void testBulkDiscovery() throws IOException {
+        LOGGER.info("  testBulkDiscovery");
+        String serviceUrl = serverSettings.getServiceUrl(version);
+        String hubUrl = SERVER_PROPERTIES.get("plugins.websub.hubUrl");
+        String helpUrl = SERVER_PROPERTIES.get("plugins.websub.helpUrl") + "#";
+        JSONArray urls = new JSONArray()
+                .put(serviceUrl + "/Observations")
+                .put(serviceUrl + "/Observations?$top=1")
+                .put(serviceUrl + "/Things")
+                .put(serviceUrl + "/Foo");
+
+        HttpPost http = new HttpPost(serviceUrl + "/$websub/discovery");
+        http.setEntity(new StringEntity(urls.toString(), ContentType.APPLICATION_JSON));
+        try (CloseableHttpResponse response = serviceSTAplus.execute(http)) {
+            Assertions.assertEquals(200, response.getStatusLine().getStatusCode(), "response status code match");
+            JSONArray result = new JSONArray(EntityUtils.toString(response.getEntity()));
+            Assertions.assertEquals(urls.length(), result.length(), "one result per URL");
+            for (int ix = 0; ix < result.length(); ix++) {
+                JSONObject discovery = result.getJSONObject(ix);
+                Assertions.assertEquals(urls.getString(ix), discovery.getString("url"), "url match");
+                Assertions.assertEquals(hubUrl, discovery.getString("hub"), "hub match");
+            }
+            Assertions.assertEquals(serviceUrl + "/Observations", result.getJSONObject(0).getString("self"), "self-link match");
+            Assertions.assertEquals(serviceUrl + "/Observations?$top=1", result.getJSONObject(1).getString("self"), "self-link match");
+            Assertions.assertFalse(result.getJSONObject(2).has("self"), "requested entityset is not in rootTopic => there is no self");
+            Assertions.assertEquals(helpUrl + TAG_ERROR_ENTITY_NOT_ALLOWED, result.getJSONObject(2).getJSONArray("help").getString(0), "help-link match");
+            Assertions.assertFalse(result.getJSONObject(3).has("self"), "requested entityset does not exist => there is no self");
+            Assertions.assertEquals(helpUrl + TAG_ERROR_ENTITY_INVALID, result.getJSONObject(3).getJSONArray("help").getString(0), "help-link match");
+        }
+    }
+
+    /*
+     * Failure: the request body is not a JSON array of URLs
+     */
+    @Test
+    public void testBulkDiscoveryInvalidBody() throws IOException {
+        LOGGER.info("  testBulkDiscoveryInvalidBody");
+        HttpPost http = new HttpPost(serverSettings.getServiceUrl(version) + "/$websub/discovery");
+        http.setEntity(new StringEntity("{\"url\": 42}", ContentType.APPLICATION_JSON));
+        try (CloseableHttpResponse response = serviceSTAplus.execute(http)) {
+            Assertions.assertEquals(400, response.getStatusLine().getStatusCode(), "response status code match");
+        }
+    }
+
+    /*
+     * Failure: the request has more than plugins.websub.bulkDiscovery.maxUrls URLs
+     */
+    @Test
+    public void testBulkDiscoveryTooManyUrls() throws IOException {
+        LOGGER.info("  testBulkDiscoveryTooManyUrls");
+        JSONArray urls = new JSONArray();
+        for (int ix = 0; ix < 6; ix++) {
+            urls.put(serverSettings.getServiceUrl(version) + "/Observations(" + ix + ")");
+        }
+        HttpPost http = new HttpPost(serverSettings.getServiceUrl(version) + "/$websub/discovery");
+        http.setEntity(new StringEntity(urls.toString(), ContentType.APPLICATION_JSON));
+        try (CloseableHttpResponse response = serviceSTAplus.execute(http)) {
+            Assertions.assertEquals(413, response.getStatusLine().getStatusCode(), "response status code match");
+        }
+    }
+
+    public static class BulkDiscoveryTest extends BulkDiscoveryTests {
+
+        public BulkDiscoveryTest() {
+            super(ServerVersion.v_1_1);
+        }
+    }
+
+}
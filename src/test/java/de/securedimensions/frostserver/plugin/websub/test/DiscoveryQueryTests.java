@@ -32,6 +32,7 @@ import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -73,6 +74,8 @@ public abstract class DiscoveryQueryTests extends AbstractTestClass {
     }
 
     private static Map<String, String[]> TEST_DATA = new HashMap<>();
+    // Expected self-link and help tag for $filter=result eq 'a&b', set by each configuration
+    private static String[] ENCODED_AMPERSAND = new String[2];
     static {
         // ODATA commands that are not restricted
         TEST_DATA.put("Observations?" + URLEncoder.encode("$top=1"), new String[]{"200", "Observations?$top=1", null, null});
@@ -121,6 +124,45 @@ public abstract class DiscoveryQueryTests extends AbstractTestClass {
         }
     }
 
+    /*
+     * Success: self Link is the canonical topic, independent of the order of the query options
+     */
+    @Test
+    public void testDiscoveryCanonicalTopic() throws IOException {
+        LOGGER.info("  testDiscoveryCanonicalTopic");
+        String url = serverSettings.getServiceUrl(version) + "/Observations?" + URLEncoder.encode("$orderBy=phenomenonTime asc&$select=result,phenomenonTime");
+        try (CloseableHttpResponse response = serviceSTAplus.execute(new HttpGet(url))) {
+            Map<String, String> linkHeaders = getLinkHeaders(response.getHeaders("Link"));
+            String expectedSelfLink = serverSettings.getServiceUrl(version) + "/Observations?$select=result%2CphenomenonTime&$orderBy=phenomenonTime%20asc";
+            Assertions.assertTrue(expectedSelfLink.equalsIgnoreCase(linkHeaders.get("self")), "self-link is canonical");
+        }
+    }
+
+    /*
+     * Success: a '&' in a string literal stays part of its option in the self Link
+     */
+    @Test
+    public void testDiscoveryEncodedAmpersand() throws IOException {
+        LOGGER.info("  testDiscoveryEncodedAmpersand");
+        String url = serverSettings.getServiceUrl(version) + "/Observations?" + URLEncoder.encode("$filter=result eq 'a&b'");
+        try (CloseableHttpResponse response = serviceSTAplus.execute(new HttpGet(url))) {
+            Map<String, String> linkHeaders = getLinkHeaders(response.getHeaders("Link"));
+            String selfLink = linkHeaders.get("self");
+            String helpLink = linkHeaders.get("help");
+            if (ENCODED_AMPERSAND[0] == null) {
+                Assertions.assertNull(selfLink, "no self-link");
+            } else {
+                String expectedSelfLink = serverSettings.getServiceUrl(version) + "/" + ENCODED_AMPERSAND[0];
+                Assertions.assertTrue(expectedSelfLink.equalsIgnoreCase(selfLink), "self-link keeps '&' in the literal");
+            }
+            if (ENCODED_AMPERSAND[1] == null) {
+                Assertions.assertNull(helpLink, "no help-link");
+            } else {
+                Assertions.assertEquals(SERVER_PROPERTIES.get("plugins.websub.helpUrl") + "#" + ENCODED_AMPERSAND[1], helpLink, "help-link match");
+            }
+        }
+    }
+
     public Map<String, String> getLinkHeaders(Header links[]) {
         if (links == null)
             return new HashMap<>(0);
@@ -175,8 +217,8 @@ public abstract class DiscoveryQueryTests extends AbstractTestClass {
                 for (int ix = 0; ix < links.length; ix++) {
                     links[ix] = SERVER_PROPERTIES.get("plugins.websub.helpUrl") + "#" + links[ix];
                 }
-                for (String link : links)
-                    Assertions.assertTrue(Arrays.asList(links).contains(link), "help-link match");
+                Assertions.assertTrue(helpLink != null, "help-link present");
+                Assertions.assertEquals(new HashSet<>(Arrays.asList(links)), new HashSet<>(Arrays.asList(helpLink.split(","))), "help-link match");
             }
         }
     }
@@ -202,6 +244,13 @@ public abstract class DiscoveryQueryTests extends AbstractTestClass {
             TEST_DATA.put("Observations?" + URLEncoder.encode("$filter=result gt 30"), new String[]{"200", null, TAG_ERROR_ODATA_FILTER_DISABLED});
             TEST_DATA.put("Observations?" + URLEncoder.encode("$expand=Datastream"), new String[]{"200", null, TAG_ERROR_ODATA_EXPAND_DISABLED});
             TEST_DATA.put("Observations?" + URLEncoder.encode("$expand=Datastream&$filter=result gt 30"), new String[]{"200", null, TAG_ERROR_ODATA_EXPAND_DISABLED + "," + TAG_ERROR_ODATA_FILTER_DISABLED});
+            // Judged by the option names, not by the contents of the literal
+            TEST_DATA.put("Observations?" + URLEncoder.encode("$filter=result eq 'filter=x'"), new String[]{"200", null, TAG_ERROR_ODATA_FILTER_DISABLED});
+            // $filter nested in $expand
+            TEST_DATA.put("Observations?" + URLEncoder.encode("$expand=Datastream($filter=name eq 'x')"), new String[]{"200", null, TAG_ERROR_ODATA_EXPAND_DISABLED + "," + TAG_ERROR_ODATA_FILTER_DISABLED});
+            // "expand=" in a literal is not an $expand
+            TEST_DATA.put("Observations?" + URLEncoder.encode("$filter=result eq 'expand=x'"), new String[]{"200", null, TAG_ERROR_ODATA_FILTER_DISABLED});
+            ENCODED_AMPERSAND = new String[]{null, TAG_ERROR_ODATA_FILTER_DISABLED};
         }
 
         public DiscoveryWithQuery00() {
@@ -220,6 +269,13 @@ public abstract class DiscoveryQueryTests extends AbstractTestClass {
             TEST_DATA.put("Observations?" + URLEncoder.encode("$filter=result gt 30"), new String[]{"200", null, TAG_ERROR_ODATA_FILTER_DISABLED});
             TEST_DATA.put("Observations?" + URLEncoder.encode("$expand=Datastream"), new String[]{"200", "Observations?$expand=Datastream", null, null});
             TEST_DATA.put("Observations?" + URLEncoder.encode("$expand=Datastream&$filter=result gt 30"), new String[]{"200", null, TAG_ERROR_ODATA_FILTER_DISABLED});
+            // Judged by the option names, not by the contents of the literal
+            TEST_DATA.put("Observations?" + URLEncoder.encode("$filter=result eq 'filter=x'"), new String[]{"200", null, TAG_ERROR_ODATA_FILTER_DISABLED});
+            // $filter nested in $expand
+            TEST_DATA.put("Observations?" + URLEncoder.encode("$expand=Datastream($filter=name eq 'x')"), new String[]{"200", null, TAG_ERROR_ODATA_FILTER_DISABLED});
+            // "expand=" in a literal is not an $expand
+            TEST_DATA.put("Observations?" + URLEncoder.encode("$filter=result eq 'expand=x'"), new String[]{"200", null, TAG_ERROR_ODATA_FILTER_DISABLED});
+            ENCODED_AMPERSAND = new String[]{null, TAG_ERROR_ODATA_FILTER_DISABLED};
         }
 
         public DiscoveryWithQuery01() {
@@ -238,6 +294,11 @@ public abstract class DiscoveryQueryTests extends AbstractTestClass {
             TEST_DATA.put("Observations?" + URLEncoder.encode("$filter=result gt 30"), new String[]{"200", "Observations?$filter=result%20gt%2030", null, null});
             TEST_DATA.put("Observations?" + URLEncoder.encode("$expand=Datastream"), new String[]{"200", null, TAG_ERROR_ODATA_EXPAND_DISABLED});
             TEST_DATA.put("Observations?" + URLEncoder.encode("$expand=Datastream&$filter=result gt 30"), new String[]{"200", null, TAG_ERROR_ODATA_EXPAND_DISABLED});
+            // "expand=" in a literal is not an $expand
+            TEST_DATA.put("Observations?" + URLEncoder.encode("$filter=result eq 'expand=x'"), new String[]{"200", "Observations?$filter=result%20eq%20'expand=x'", null, null});
+            TEST_DATA.put("Observations?" + URLEncoder.encode("$filter=result eq 'filter=x'"), new String[]{"200", "Observations?$filter=result%20eq%20'filter=x'", null, null});
+            TEST_DATA.put("Observations?" + URLEncoder.encode("$expand=Datastream($filter=name eq 'x')"), new String[]{"200", null, TAG_ERROR_ODATA_EXPAND_DISABLED});
+            ENCODED_AMPERSAND = new String[]{"Observations?$filter=result%20eq%20'a%26b'", null};
         }
 
         public DiscoveryWithQuery10() {
@@ -256,10 +317,51 @@ public abstract class DiscoveryQueryTests extends AbstractTestClass {
             TEST_DATA.put("Observations?" + URLEncoder.encode("$filter=result gt 30"), new String[]{"200", "Observations?$filter=result%20gt%2030", null, null});
             TEST_DATA.put("Observations?" + URLEncoder.encode("$expand=Datastream"), new String[]{"200", "Observations?$expand=Datastream", null, null});
             TEST_DATA.put("Observations?" + URLEncoder.encode("$expand=Datastream&$filter=result gt 30"), new String[]{"200", "$expand=Datastream&$filter=result gt 30", null});
+            TEST_DATA.put("Observations?" + URLEncoder.encode("$filter=result eq 'filter=x'"), new String[]{"200", "Observations?$filter=result%20eq%20'filter=x'", null, null});
+            TEST_DATA.put("Observations?" + URLEncoder.encode("$filter=result eq 'expand=x'"), new String[]{"200", "Observations?$filter=result%20eq%20'expand=x'", null, null});
+            TEST_DATA.put("Observations?" + URLEncoder.encode("$expand=Datastream($filter=name eq 'x')"), new String[]{"200", "Observations?$expand=Datastream($filter=name%20eq%20'x')", null, null});
+            ENCODED_AMPERSAND = new String[]{"Observations?$filter=result%20eq%20'a%26b'", null};
         }
 
         public DiscoveryWithQuery11() {
             super(ServerVersion.v_1_1);
         }
     }
+
+    public static class DiscoveryWithQueryHeadFastPath extends DiscoveryQueryTests {
+
+        static {
+            // Test configuration, HEAD requests are answered by the plugin
+            SERVER_PROPERTIES.put("plugins.websub.enable.odataQuery", "true");
+            SERVER_PROPERTIES.put("plugins.websub.enable.headFastPath", "true");
+            SERVER_PROPERTIES.put("mqtt.allowFilter", "true");
+            SERVER_PROPERTIES.put("mqtt.allowExpand", "true");
+
+            TEST_DATA.put("Observations?" + URLEncoder.encode("$filter=result gt 30"), new String[]{"200", "Observations?$filter=result%20gt%2030", null, null});
+            TEST_DATA.put("Observations?" + URLEncoder.encode("$expand=Datastream"), new String[]{"200", "Observations?$expand=Datastream", null, null});
+            ENCODED_AMPERSAND = new String[]{"Observations?$filter=result%20eq%20'a%26b'", null};
+        }
+
+        public DiscoveryWithQueryHeadFastPath() {
+            super(ServerVersion.v_1_1);
+        }
+
+        /*
+         * Success: HEAD is answered by the plugin, even for an entity that does not exist, while GET executes the query
+         */
+        @Test
+        public void testHeadFastPathSkipsQuery() throws IOException {
+            LOGGER.info("  testHeadFastPathSkipsQuery");
+            String url = serverSettings.getServiceUrl(version) + "/Observations(999999)";
+            try (CloseableHttpResponse response = serviceSTAplus.execute(new HttpHead(url))) {
+                Assertions.assertEquals(200, response.getStatusLine().getStatusCode(), "HEAD is answered without the query");
+                Map<String, String> linkHeaders = getLinkHeaders(response.getHeaders("Link"));
+                Assertions.assertEquals(SERVER_PROPERTIES.get("plugins.websub.hubUrl"), linkHeaders.get("hub"), "hub match");
+                Assertions.assertTrue(url.equalsIgnoreCase(linkHeaders.get("self")), "self-link match");
+            }
+            try (CloseableHttpResponse response = serviceSTAplus.execute(new HttpGet(url))) {
+                Assertions.assertEquals(404, response.getStatusLine().getStatusCode(), "GET executes the query");
+            }
+        }
+    }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2024 Secure Dimensions GmbH, D-81377
+ * Munich, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.securedimensions.frostserver.plugin.websub.test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.sun.net.httpserver.HttpServer;
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsPlus;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing;
+import de.fraunhofer.iosb.ilt.statests.AbstractTestClass;
+import de.fraunhofer.iosb.ilt.statests.ServerVersion;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.junit.jupiter.api.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests that a write notifies the Hub with a hub.mode=publish request.
+ * A local HTTP server acts as the Hub.
+ *
+ * @author securedimensions
+ */
+@TestMethodOrder(MethodOrderer.MethodName.class)
+public abstract class PublishTests extends AbstractTestClass {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(PublishTests.class);
+    private static final long serialVersionUID = 1639739965;
+    private static final Map<String, String> SERVER_PROPERTIES = new LinkedHashMap<>();
+    private static final List<String> PUBLISHED = new CopyOnWriteArrayList<>();
+    private static final HttpServer HUB;
+
+    static {
+        try {
+            HUB = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        HUB.createContext("/", exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                PUBLISHED.add(new String(body.readAllBytes(), UTF_8));
+            }
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        HUB.start();
+
+        SERVER_PROPERTIES.put("mqtt.enabled", "false");
+        SERVER_PROPERTIES.put("plugins.plugins", "de.securedimensions.frostserver.plugin.websub.PluginWebSub");
+        SERVER_PROPERTIES.put("plugins.websub.enable", "true");
+        SERVER_PROPERTIES.put("plugins.websub.enable.publish", "true");
+        SERVER_PROPERTIES.put("plugins.websub.hubUrl", "http://localhost:" + HUB.getAddress().getPort() + "/api/subscriptions");
+        SERVER_PROPERTIES.put("plugins.websub.rootTopics", "Things");
+        SERVER_PROPERTIES.put("plugins.websub.helpUrl", "https://github.com/securedimensions/FROST-Server-WebSub/help");
+    }
+
+    protected static SensorThingsPlus pMdl;
+    protected static SensorThingsService serviceSTAplus;
+
+    public PublishTests(ServerVersion version) {
+        super(version, SERVER_PROPERTIES);
+    }
+
+    @AfterAll
+    public static void tearDown() {
+        LOGGER.info("Tearing down.");
+        HUB.stop(0);
+    }
+
+    @Override
+    protected void setUpVersion() {
+        LOGGER.info("Setting up for version {}.", version.urlPart);
+        try {
+            sMdl = new SensorThingsV11Sensing();
+            pMdl = new SensorThingsPlus();
+            serviceSTAplus = new SensorThingsService(sMdl, pMdl).setBaseUrl(new URL(serverSettings.getServiceUrl(version))).init();
+        } catch (MalformedURLException ex) {
+            LOGGER.error("Failed to create URL", ex);
+        }
+    }
+
+    @Override
+    protected void tearDownVersion() {
+        LOGGER.info("tearing down");
+    }
+
+    /*
+     * Success: creating a Thing publishes the Things topic to the Hub
+     */
+    @Test
+    public void testPublishOnCreate() throws IOException, InterruptedException {
+        LOGGER.info("  testPublishOnCreate");
+        String topic = serverSettings.getServiceUrl(version) + "/Things";
+        HttpPost http = new HttpPost(topic);
+        http.setEntity(new StringEntity("{\"name\": \"WebSub\", \"description\": \"Publish test\"}", ContentType.APPLICATION_JSON));
+        try (CloseableHttpResponse response = serviceSTAplus.execute(http)) {
+            Assertions.assertEquals(201, response.getStatusLine().getStatusCode(), "Thing created");
+        }
+
+        String expected = "hub.mode=publish&hub.url=" + URLEncoder.encode(topic, UTF_8);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!PUBLISHED.contains(expected) && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        Assertions.assertTrue(PUBLISHED.contains(expected), "Hub received " + PUBLISHED);
+    }
+
+    public static class PublishTest extends PublishTests {
+
+        public PublishTest() {
+            super(ServerVersion.v_1_1);
+        }
+    }
+
+}
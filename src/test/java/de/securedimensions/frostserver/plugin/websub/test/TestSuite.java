@@ -36,7 +36,10 @@ import org.testcontainers.junit.jupiter.Testcontainers;
     DiscoveryQueryTests.DiscoveryWithQuery00.class,
     DiscoveryQueryTests.DiscoveryWithQuery01.class,
     DiscoveryQueryTests.DiscoveryWithQuery10.class,
-    DiscoveryQueryTests.DiscoveryWithQuery11.class
+    DiscoveryQueryTests.DiscoveryWithQuery11.class,
+    DiscoveryQueryTests.DiscoveryWithQueryHeadFastPath.class,
+    BulkDiscoveryTests.BulkDiscoveryTest.class,
+    PublishTests.PublishTest.class
 })
 @Suite
 @Testcontainers